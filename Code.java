@@ -3,10 +3,95 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
 
 public class Asteroids {
+    static int headlessTicks = 0;
+
     public static void main(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-alloccheck")) System.exit(TickAllocationCheck.run(200000, 20000) == 0 ? 0 : 1);
+            // -rastercheck draws seeded games through both backends and fails on the first differing pixel
+            if (args[i].equals("-rastercheck")) System.exit(RasterCheck.run() ? 0 : 1);
+            // -bench [filter] runs the benchmark suite and writes bench-results.json
+            if (args[i].equals("-bench")) {
+                Benchmarks.run(i + 1 < args.length ? args[i + 1] : "", new File("bench-results.json"));
+                System.exit(0);
+            }
+            // -stats prints frame-time percentiles and input-to-photon latency after each game, and the F3
+            // profile table when the overlay is closed
+            if (args[i].equals("-stats")) GamePanel.printStats = true;
+            // -startup prints how long the window, first frame and user data took to come up
+            if (args[i].equals("-startup")) Startup.enabled = true;
+            // -stress N fills the field with N asteroids and logs tick times, -naive disables the grid
+            if (args[i].equals("-stress") && i + 1 < args.length) GameSimulation.stressAsteroids = Integer.parseInt(args[++i]);
+            if (args[i].equals("-naive")) GameSimulation.naiveCollisions = true;
+            if (args[i].equals("-nosprites")) GamePanel.useSprites = false;
+            if (args[i].equals("-raster")) GamePanel.defaultRaster = true;
+            // -mmap keeps pilots in a memory-mapped users.db, migrating the text files on first use
+            if (args[i].equals("-mmap")) UserData.useMappedStore = true;
+            // -active renders through a BufferStrategy on the game thread, -hz N runs the rules at 30/60/120/240 Hz
+            if (args[i].equals("-active")) GamePanel.activeRendering = true;
+            if (args[i].equals("-hz") && i + 1 < args.length) {
+                int hz = Integer.parseInt(args[++i]);
+                if (Arrays.stream(GameSimulation.TICK_RATES).noneMatch(r -> r == hz)) {
+                    System.out.println("tick rate must be one of " + Arrays.toString(GameSimulation.TICK_RATES));
+                    System.exit(2);
+                }
+                GameSimulation.defaultTickRate = hz;
+            }
+            // -headless N runs N ticks flat out without opening a window and prints ticks/sec
+            if (args[i].equals("-headless") && i + 1 < args.length) headlessTicks = Integer.parseInt(args[++i]);
+            // -parallel N moves asteroid blocks of N or more on the fork/join pool
+            if (args[i].equals("-parallel") && i + 1 < args.length) EntityStore.parallelThreshold = Integer.parseInt(args[++i]);
+            // -scaling N times N asteroids serially and on 1..cores fork/join threads
+            if (args[i].equals("-scaling") && i + 1 < args.length) {
+                GameSimulation.runScaling(Integer.parseInt(args[i + 1]), 600);
+                return;
+            }
+            // -host N SECONDS runs N headless sessions on a timing wheel and reports tick jitter; their pilots
+            // and scores go to a throwaway directory, not the real leaderboard, which is removed afterwards
+            if (args[i].equals("-host") && i + 2 < args.length) {
+                int sessions = Integer.parseInt(args[i + 1]);
+                if (sessions < 1) {
+                    System.out.println("-host needs at least one session");
+                    System.exit(2);
+                }
+                try {
+                    File dir = Files.createTempDirectory("asteroids-host").toFile();
+                    UserData scratch = new UserData(dir);
+                    new SessionHost(scratch, sessions).run(Integer.parseInt(args[i + 2]));
+                    scratch.close();
+                    for (File f : dir.listFiles()) f.delete();
+                    dir.delete();
+                    System.exit(0);
+                } catch (IOException e) {
+                    System.out.println("could not create a directory for the sessions: " + e.getMessage());
+                    System.exit(2);
+                }
+            }
+            // -replay FILE plays a recording back flat out and checks the final score and state hash
+            if (args[i].equals("-replay") && i + 1 < args.length) {
+                try {
+                    System.exit(Replay.read(new File(args[i + 1])).play() ? 0 : 1);
+                } catch (IOException e) {
+                    System.out.println("could not read replay: " + e.getMessage());
+                    System.exit(2);
+                }
+            }
+        }
+        if (headlessTicks > 0) {
+            GameSimulation.runHeadless(headlessTicks, 2, 1);
+            return;
+        }
         SwingUtilities.invokeLater(() -> new GameFrame());
     }
 }
@@ -29,26 +114,46 @@ class GameFrame extends JFrame {
         setResizable(false);
         setLocationRelativeTo(null);
 
+        // only the login screen is built up front; the menu and game screens follow once it has been painted
         loginPanel = new LoginPanel(this);
-        menuPanel = new MenuPanel(this);
-        gamePanel = new GamePanel(this);
-
         root.add(loginPanel, "LOGIN");
-        root.add(menuPanel, "MENU");
-        root.add(gamePanel, "GAME");
 
         add(root);
         cards.show(root, "LOGIN");
         setVisible(true);
+        Startup.mark("window shown");
+    }
+
+    MenuPanel menu() {
+        if (menuPanel == null) {
+            menuPanel = new MenuPanel(this);
+            root.add(menuPanel, "MENU");
+        }
+        return menuPanel;
+    }
+
+    GamePanel game() {
+        if (gamePanel == null) {
+            gamePanel = new GamePanel(this);
+            root.add(gamePanel, "GAME");
+        }
+        return gamePanel;
+    }
+
+    // called on the EDT after the first frame; builds the other screens so switching to them is instant
+    void prebuild() {
+        menu();
+        game().buildBackground(chosenMap);
+        Startup.mark("screens built");
     }
 
     void showMenu() {
-        menuPanel.updateLabels();
+        menu().updateLabels();
         cards.show(root, "MENU");
     }
 
     void startGame() {
-        gamePanel.setup(chosenMap, chosenShip, currentUser);
+        game().setup(chosenMap, chosenShip, currentUser);
         cards.show(root, "GAME");
         gamePanel.requestFocusInWindow();  // ensure panel has focus
         gamePanel.start();
@@ -56,29 +161,177 @@ class GameFrame extends JFrame {
 }
 
 
+// users.txt and scores.txt are snapshots; every change since the last one is appended to userdata.log as a
+// checksummed record, so a registration or new high score costs one small write instead of a full rewrite.
+// callers only update the maps and queue the change; the userdata-log thread owns the file and writes the
+// queue out in batches with one fsync each, so the EDT and the game thread never wait on the disk
 class UserData {
-    private final File userFile = new File("users.txt");
-    private final File scoreFile = new File("scores.txt");
-    Map<String, String> users = new HashMap<>();
-    Map<String, Integer> scores = new HashMap<>();
+    static final byte USER = 1, SCORE = 2;
+    static final int FLUSH_BATCH = 256;         // flush as soon as this many changes are queued...
+    static final long FLUSH_MILLIS = 100;       // ...and at least this often otherwise
+    // replay refuses longer records as corrupt, so register refuses names and passwords that could make one:
+    // two fields of up to 3 bytes per char plus their lengths and the type stay well inside it
+    static final int MAX_RECORD = 1 << 16, MAX_FIELD = 4096;
+    // a fresh snapshot is written once the log outgrows both this and the last snapshot, which keeps the
+    // rewrite cost per record constant however many pilots there are
+    static long compactBytes = 4 << 20;
+    private final File userFile;
+    private final File scoreFile;
+    private final File logFile;
+    private final File oldLogFile;              // the log being folded into a snapshot; replayed if that was cut short
+    // concurrent so compaction can write them out while callers keep changing them
+    Map<String, String> users = new ConcurrentHashMap<>();
+    Map<String, Integer> scores = new ConcurrentHashMap<>();
+    ScoreRanking ranking = new ScoreRanking();  // the same scores, ordered for the leaderboard
+    // -mmap keeps pilots in users.db instead; the maps, log and ranking above then stay empty
+    static boolean useMappedStore = false;
+    MappedUserStore mapped;
+    // changes not yet in the log, coalesced: the latest password and only the best score per pilot
+    Map<String, String> pendingUsers = new LinkedHashMap<>();
+    Map<String, Integer> pendingScores = new LinkedHashMap<>();
+    boolean flushQueued = false;
+    boolean loaded = false;
+    // everything below is only touched on the background thread, or by close() once it has stopped
+    FileChannel log;
+    long logBytes = 0, snapshotBytes = 0;
+    ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(), bodyBuf = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "userdata-log");
+        t.setDaemon(true);
+        return t;
+    });
 
     UserData() {
+        this(new File("."));
+    }
+
+    // returns at once; the files are read on the background thread and every method waits for that, except
+    // login, which only waits until its own pilot has turned up
+    UserData(File dir) {
+        userFile = new File(dir, "users.txt");
+        scoreFile = new File(dir, "scores.txt");
+        logFile = new File(dir, "userdata.log");
+        oldLogFile = new File(dir, "userdata.log.old");
+        background.execute(() -> {
+            load(dir);
+            synchronized (this) {
+                loaded = true;
+                notifyAll();
+            }
+            Startup.usersLoaded();
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private void load(File dir) {
+        File dbFile = new File(dir, "users.db"), idxFile = new File(dir, "users.idx");
+        // a users.db that won't open leaves the pilots on the text files, which are loaded as if -mmap was off
+        boolean existing = useMappedStore && dbFile.exists();
+        if (existing && openMapped(dbFile, idxFile, false)) return;
         loadUsers();
         loadScores();
+        snapshotBytes = userFile.length() + scoreFile.length();
+        try {
+            if (oldLogFile.exists()) replay(oldLogFile);
+            replay(logFile);
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            log.position(log.size());
+            logBytes = log.size();
+        } catch (IOException e) {
+            System.out.println("user data log unavailable, changes won't be kept: " + e.getMessage());
+        }
+        if (useMappedStore && !existing && openMapped(dbFile, idxFile, true)) return;
+        background.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        if (oldLogFile.exists()) background.execute(this::compact);
+        for (Map.Entry<String, Integer> e : scores.entrySet()) ranking.insert(e.getKey(), e.getValue());
+    }
+
+    private synchronized void awaitLoaded() {
+        while (!loaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // switches to the mapped store; a first run copies in what the text files and the log hold, then moves them
+    // aside so the migration happens once. the store is only published once it is complete: until then a login
+    // that has found its pilot keeps using the maps. false if the store could not be opened
+    private boolean openMapped(File dbFile, File idxFile, boolean migrate) {
+        MappedUserStore store;
+        try {
+            store = new MappedUserStore(dbFile, idxFile);
+        } catch (IOException e) {
+            System.out.println("could not open " + dbFile + ", staying on the text files: " + e.getMessage());
+            return false;
+        }
+        if (migrate) {
+            for (Map.Entry<String, String> e : users.entrySet()) {
+                if (store.add(e.getKey(), e.getValue()) < 0) System.out.println("not migrated, name or password too long: " + e.getKey());
+            }
+            for (Map.Entry<String, Integer> e : scores.entrySet()) {
+                int rec = store.find(e.getKey());
+                if (rec >= 0) store.setScore(rec, e.getValue());
+            }
+            store.force();
+            try { if (log != null) log.close(); } catch (IOException ignored) {}
+            log = null;
+            for (File f : new File[]{userFile, scoreFile, logFile, oldLogFile}) {
+                if (f.exists()) f.renameTo(new File(f.getPath() + ".migrated"));
+            }
+            System.out.println("migrated " + store.count + " pilots to " + dbFile);
+        }
+        synchronized (this) {
+            mapped = store;
+            users.clear();
+            scores.clear();
+        }
+        // the buffers are picked up under the lock, so a remap can't swap them halfway, but the msync itself runs
+        // outside it and callers never queue behind the disk. a buffer replaced meanwhile stays valid while held
+        background.scheduleWithFixedDelay(() -> {
+            MappedByteBuffer db, idx;
+            synchronized (this) {
+                if (!mapped.dirty) return;
+                mapped.dirty = false;
+                db = mapped.db;
+                idx = mapped.idx;
+            }
+            try {
+                db.force();
+                idx.force();
+            } catch (UncheckedIOException e) {
+                mapped.dirty = true;  // retried next time; a throw here would cancel the schedule
+                System.out.println("could not sync " + dbFile + ": " + e.getMessage());
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        return true;
     }
 
     void loadUsers() {
-        users.clear();
         if (!userFile.exists()) return;
         try (BufferedReader r = new BufferedReader(new FileReader(userFile))) {
             String line;
+            Map<String, String> chunk = new HashMap<>();
             while ((line = r.readLine()) != null) {
                 String[] p = line.split(":",2);
-                if (p.length==2) users.put(p[0], p[1]);
+                if (p.length==2) chunk.put(p[0], p[1]);
+                if (chunk.size() == 4096) publishUsers(chunk);
             }
+            publishUsers(chunk);
         } catch (IOException ignored) {}
     }
 
+    // hands parsed pilots over a chunk at a time, so a waiting login sees its own as soon as possible
+    private synchronized void publishUsers(Map<String, String> chunk) {
+        users.putAll(chunk);
+        chunk.clear();
+        notifyAll();
+    }
+
     void loadScores() {
         scores.clear();
         if (!scoreFile.exists()) return;
@@ -91,39 +344,557 @@ class UserData {
         } catch (IOException ignored) {}
     }
 
-    boolean register(String user, String pass) {
-        if (users.containsKey(user) || user.isEmpty()) return false;
+    // applies every intact record on top of the snapshots; a torn or corrupt tail from a crash is cut off
+    void replay(File f) throws IOException {
+        if (!f.exists()) return;
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int len = in.readInt();
+                int sum = in.readInt();
+                if (len <= 0 || len > MAX_RECORD) break;
+                byte[] body = new byte[len];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != sum) break;
+                synchronized (this) {
+                    apply(new DataInputStream(new ByteArrayInputStream(body)));
+                    notifyAll();
+                }
+                good += 8 + len;
+            }
+        } catch (EOFException ignored) {}
+        if (good < f.length()) {
+            System.out.println("dropping " + (f.length() - good) + " torn bytes from " + f);
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String user = in.readUTF();
+        if (type == USER) users.put(user, in.readUTF());
+        else if (type == SCORE) scores.merge(user, in.readInt(), Math::max);
+    }
+
+    synchronized boolean register(String user, String pass) {
+        awaitLoaded();
+        if (mapped != null) return !user.isEmpty() && mapped.find(user) < 0 && mapped.add(user, pass) >= 0;
+        if (users.containsKey(user) || user.isEmpty() || user.length() > MAX_FIELD || pass.length() > MAX_FIELD) return false;
         users.put(user, pass);
-        saveUsers();
+        pendingUsers.put(user, pass);
+        queued();
         return true;
     }
 
-    boolean login(String user, String pass) {
+    synchronized boolean login(String user, String pass) {
+        while (!loaded && !users.containsKey(user)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (mapped != null) {
+            int rec = mapped.find(user);
+            return rec >= 0 && mapped.passwordMatches(rec, pass);
+        }
         return users.containsKey(user) && users.get(user).equals(pass);
     }
 
-    int getHighScore(String user) {
-        return scores.getOrDefault(user, 0);
+    synchronized int getHighScore(String user) {
+        awaitLoaded();
+        if (mapped != null) {
+            int rec = user == null ? -1 : mapped.find(user);
+            return rec < 0 ? 0 : mapped.score(rec);
+        }
+        return user == null ? 0 : scores.getOrDefault(user, 0);
     }
 
-    void saveScore(String user, int score) {
+    synchronized void saveScore(String user, int score) {
+        awaitLoaded();
+        if (mapped != null) {
+            int rec = mapped.find(user);
+            if (rec >= 0 && score > mapped.score(rec)) mapped.setScore(rec, score);
+            return;
+        }
         int prev = scores.getOrDefault(user, 0);
         if (score > prev) {
-            scores.put(user, score);
-            saveScores();
+            Integer old = scores.put(user, score);
+            if (old != null) ranking.remove(user, old);
+            ranking.insert(user, score);
+            pendingScores.put(user, score);
+            queued();
+        }
+    }
+
+    // 1 for the best score; 0 for a pilot without one
+    synchronized int rank(String user) {
+        awaitLoaded();
+        if (mapped != null) return user == null ? 0 : mapped.rank(user);
+        Integer score = user == null ? null : scores.get(user);
+        return score == null ? 0 : ranking.rank(user, score);
+    }
+
+    synchronized int rankedCount() {
+        awaitLoaded();
+        if (mapped != null) return mapped.rankedCount();
+        return ranking.size();
+    }
+
+    // "user:score" lines, best first
+    synchronized java.util.List<String> topScores(int k) {
+        awaitLoaded();
+        if (mapped != null) return mapped.range(0, k);
+        return ranking.range(0, k);
+    }
+
+    // a page of the leaderboard, from is 0-based
+    synchronized java.util.List<String> scorePage(int from, int count) {
+        awaitLoaded();
+        if (mapped != null) return mapped.range(from, count);
+        return ranking.range(from, count);
+    }
+
+    private void queued() {
+        if (flushQueued || pendingUsers.size() + pendingScores.size() < FLUSH_BATCH) return;
+        flushQueued = true;
+        try {
+            background.execute(this::flush);
+        } catch (RejectedExecutionException ignored) {}  // shutting down; close() flushes what's left
+    }
+
+    // takes the queue under the lock, then writes it and syncs once with the lock released
+    void flush() {
+        Map<String, String> u;
+        Map<String, Integer> sc;
+        synchronized (this) {
+            flushQueued = false;
+            if (pendingUsers.isEmpty() && pendingScores.isEmpty()) return;
+            u = pendingUsers;
+            sc = pendingScores;
+            pendingUsers = new LinkedHashMap<>();
+            pendingScores = new LinkedHashMap<>();
+        }
+        if (log == null) return;
+        GameEvents.Save event = new GameEvents.Save();
+        event.begin();
+        long before = logBytes;
+        try {
+            // users first, so a replayed score never refers to a pilot the log hasn't registered yet
+            recordBuf.reset();
+            DataOutputStream out = new DataOutputStream(recordBuf);
+            for (Map.Entry<String, String> e : u.entrySet()) encode(out, USER, e.getKey(), e.getValue(), 0);
+            for (Map.Entry<String, Integer> e : sc.entrySet()) encode(out, SCORE, e.getKey(), null, e.getValue());
+            ByteBuffer buf = ByteBuffer.wrap(recordBuf.toByteArray());
+            while (buf.hasRemaining()) log.write(buf);
+            logBytes += buf.capacity();
+            log.force(false);
+        } catch (IOException e) {
+            System.out.println("could not append to " + logFile + ": " + e.getMessage());
+        }
+        event.finish(logFile, logBytes - before, u.size() + sc.size());
+        if (logBytes > Math.max(compactBytes, snapshotBytes)) compact();
+    }
+
+    // record layout: length, crc32 of the body, then type, user and either the password or the score
+    private void encode(DataOutputStream out, byte type, String user, String pass, int score) throws IOException {
+        bodyBuf.reset();
+        DataOutputStream body = new DataOutputStream(bodyBuf);
+        body.writeByte(type);
+        body.writeUTF(user);
+        if (type == USER) body.writeUTF(pass);
+        else body.writeInt(score);
+        crc.reset();
+        crc.update(bodyBuf.toByteArray());
+        out.writeInt(bodyBuf.size());
+        out.writeInt((int) crc.getValue());
+        bodyBuf.writeTo(out);
+    }
+
+    // moves the log aside, snapshots the maps and drops the old log. the maps are written straight from a live
+    // iteration, so a change made meanwhile may or may not make the snapshot, but it is queued for the new log
+    // either way, and replaying that over the snapshot later changes nothing
+    private void compact() {
+        try {
+            if (log != null && logBytes > 0) {
+                log.close();
+                if (oldLogFile.exists()) Files.delete(oldLogFile.toPath());  // left by a crash, already replayed
+                Files.move(logFile.toPath(), oldLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                logBytes = 0;
+            }
+        } catch (IOException e) {
+            System.out.println("could not rotate " + logFile + ": " + e.getMessage());
+            return;
         }
+        saveUsers(users);
+        saveScores(scores);
+        oldLogFile.delete();
+        snapshotBytes = userFile.length() + scoreFile.length();
     }
 
-    void saveUsers() {
-        try (PrintWriter w = new PrintWriter(new FileWriter(userFile))) {
-            for (String u : users.keySet()) w.println(u + ":" + users.get(u));
+    // both snapshots go to a temp file first and are renamed over the old one, so a reader never sees half a file
+    void saveUsers(Map<String, String> users) {
+        GameEvents.Save event = new GameEvents.Save();
+        event.begin();
+        File tmp = new File(userFile.getPath() + ".tmp");
+        try (PrintWriter w = new PrintWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, String> e : users.entrySet()) w.println(e.getKey() + ":" + e.getValue());
         } catch (IOException ignored) {}
+        replace(tmp, userFile);
+        event.finish(userFile, userFile.length(), users.size());
     }
 
-    void saveScores() {
-        try (PrintWriter w = new PrintWriter(new FileWriter(scoreFile))) {
-            for (String u : scores.keySet()) w.println(u + ":" + scores.get(u));
+    void saveScores(Map<String, Integer> scores) {
+        GameEvents.Save event = new GameEvents.Save();
+        event.begin();
+        File tmp = new File(scoreFile.getPath() + ".tmp");
+        try (PrintWriter w = new PrintWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Integer> e : scores.entrySet()) w.println(e.getKey() + ":" + e.getValue());
         } catch (IOException ignored) {}
+        replace(tmp, scoreFile);
+        event.finish(scoreFile, scoreFile.length(), scores.size());
+    }
+
+    private static void replace(File tmp, File target) {
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("could not write " + target + ": " + e.getMessage());
+        }
+    }
+
+    // runs on shutdown: lets a running flush or compaction finish, then writes out whatever is still queued
+    void close() {
+        background.shutdown();
+        try { background.awaitTermination(10, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
+        synchronized (this) {
+            if (mapped != null) mapped.force();
+            if (log == null) return;
+            flush();
+            try { log.close(); } catch (IOException ignored) {}
+            log = null;
+        }
+    }
+}
+
+// pilots as fixed-width records in a memory-mapped users.db, found through an open-addressing hash table in
+// users.idx, so lookups and updates touch a few pages instead of holding every pilot on the heap. the index is
+// derived from the records and is rebuilt whenever its count disagrees with them, e.g. after a crash mid-add.
+// the leaderboard scans the score column, which is cheap next to the heap a ranked index would need
+class MappedUserStore {
+    static final int MAGIC = 0x41535531;  // "ASU1"
+    static final int HEADER = 64, RECORD = 128;
+    static final int NAME_AT = 0, NAME_MAX = 63, PASS_AT = 64, PASS_MAX = 59, SCORE_AT = 124;
+    static final int INDEX_HEADER = 8;
+    final FileChannel dbChannel, idxChannel;
+    MappedByteBuffer db, idx;
+    int count, capacity, slots;
+    volatile boolean dirty = false;
+
+    // both channels are closed again if the files turn out to be unusable
+    MappedUserStore(File dbFile, File idxFile) throws IOException {
+        dbChannel = FileChannel.open(dbFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            idxChannel = FileChannel.open(idxFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            dbChannel.close();
+            throw e;
+        }
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            dbChannel.close();
+            idxChannel.close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        boolean fresh = dbChannel.size() < HEADER;
+        capacity = fresh ? 1024 : (int) ((dbChannel.size() - HEADER) / RECORD);
+        mapRecords();
+        if (fresh) db.putInt(0, MAGIC);
+        else if (db.getInt(0) != MAGIC) throw new IOException("not a user store");
+        count = db.getInt(4);
+        if (count < 0 || count > capacity) throw new IOException("corrupt record count " + count);
+        if (idxChannel.size() >= INDEX_HEADER) {
+            idx = idxChannel.map(FileChannel.MapMode.READ_WRITE, 0, idxChannel.size());
+            slots = idx.getInt(4);
+        }
+        if (idx == null || idx.getInt(0) != count || slots < 2 * capacity
+                || idxChannel.size() != INDEX_HEADER + 4L * slots) rebuildIndex();
+    }
+
+    private void mapRecords() throws IOException {
+        db = dbChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * RECORD);
+    }
+
+    private void rebuildIndex() throws IOException {
+        slots = Integer.highestOneBit(Math.max(capacity, 1) * 4 - 1);  // a power of two, at least 2 * capacity
+        idxChannel.truncate(0);
+        idx = idxChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + 4L * slots);
+        idx.putInt(4, slots);
+        for (int rec = 0; rec < count; rec++) place(nameBytes(rec), rec);
+        idx.putInt(0, count);
+        dirty = true;
+    }
+
+    private static int hash(byte[] name) {
+        int h = Arrays.hashCode(name);
+        return h ^ (h >>> 16);
+    }
+
+    private void place(byte[] name, int rec) {
+        int mask = slots - 1;
+        int s = hash(name) & mask;
+        while (idx.getInt(INDEX_HEADER + 4 * s) != 0) s = (s + 1) & mask;
+        idx.putInt(INDEX_HEADER + 4 * s, rec + 1);
+    }
+
+    // the record number for a name, or -1
+    int find(String user) {
+        byte[] name = user.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        int mask = slots - 1;
+        for (int s = hash(name) & mask; ; s = (s + 1) & mask) {
+            int v = idx.getInt(INDEX_HEADER + 4 * s);
+            if (v == 0) return -1;
+            if (fieldEquals(v - 1, NAME_AT, name)) return v - 1;
+        }
+    }
+
+    // writes the record, then the count, then the index slot, so a crash at any point leaves either no trace
+    // or a record the index rebuild picks up. -1 if the name or password doesn't fit
+    int add(String user, String pass) {
+        byte[] name = user.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] pw = pass.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        if (name.length > NAME_MAX || pw.length > PASS_MAX) return -1;
+        try {
+            if (count == capacity) {
+                capacity *= 2;
+                mapRecords();
+                rebuildIndex();
+            }
+        } catch (IOException e) {
+            System.out.println("could not grow the user store: " + e.getMessage());
+            return -1;
+        }
+        int rec = count;
+        putField(rec, NAME_AT, name);
+        putField(rec, PASS_AT, pw);
+        db.putInt(at(rec) + SCORE_AT, 0);
+        db.putInt(4, ++count);
+        place(name, rec);
+        idx.putInt(0, count);
+        dirty = true;
+        return rec;
+    }
+
+    int score(int rec) { return db.getInt(at(rec) + SCORE_AT); }
+
+    void setScore(int rec, int score) {
+        db.putInt(at(rec) + SCORE_AT, score);
+        dirty = true;
+    }
+
+    boolean passwordMatches(int rec, String pass) {
+        return fieldEquals(rec, PASS_AT, pass.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    String name(int rec) {
+        return new String(nameBytes(rec), java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    // 1 for the best score, ties broken by name like ScoreRanking; 0 for a pilot without a score
+    int rank(String user) {
+        int me = find(user);
+        if (me < 0 || score(me) == 0) return 0;
+        int mine = score(me), above = 0;
+        for (int rec = 0; rec < count; rec++) {
+            int s = score(rec);
+            if (s > mine || (s == mine && rec != me && name(rec).compareTo(user) < 0)) above++;
+        }
+        return above + 1;
+    }
+
+    int rankedCount() {
+        int n = 0;
+        for (int rec = 0; rec < count; rec++) if (score(rec) > 0) n++;
+        return n;
+    }
+
+    // "user:score" lines for positions from .. from+count-1, via a bounded heap over the score column
+    java.util.List<String> range(int from, int count) {
+        int keep = from + count;
+        PriorityQueue<Integer> best = new PriorityQueue<>((a, b) -> -compareRank(a, b));
+        for (int rec = 0; rec < this.count; rec++) {
+            if (score(rec) == 0) continue;
+            best.add(rec);
+            if (best.size() > keep) best.poll();
+        }
+        Integer[] order = best.toArray(new Integer[0]);
+        Arrays.sort(order, this::compareRank);
+        java.util.List<String> out = new ArrayList<>();
+        for (int i = from; i < order.length; i++) out.add(name(order[i]) + ":" + score(order[i]));
+        return out;
+    }
+
+    private int compareRank(int a, int b) {
+        if (score(a) != score(b)) return score(a) > score(b) ? -1 : 1;
+        return name(a).compareTo(name(b));
+    }
+
+    void force() {
+        if (!dirty) return;
+        dirty = false;
+        db.force();
+        idx.force();
+    }
+
+    private static int at(int rec) { return HEADER + rec * RECORD; }
+
+    private byte[] nameBytes(int rec) {
+        byte[] b = new byte[db.get(at(rec) + NAME_AT) & 0xff];
+        db.get(at(rec) + NAME_AT + 1, b);
+        return b;
+    }
+
+    private void putField(int rec, int field, byte[] value) {
+        db.put(at(rec) + field, (byte) value.length);
+        db.put(at(rec) + field + 1, value);
+    }
+
+    private boolean fieldEquals(int rec, int field, byte[] value) {
+        int base = at(rec) + field;
+        if ((db.get(base) & 0xff) != value.length) return false;
+        for (int i = 0; i < value.length; i++) if (db.get(base + 1 + i) != value[i]) return false;
+        return true;
+    }
+}
+
+// every pilot's best score in a treap ordered best first (ties by name), each node knowing its subtree size,
+// so a pilot's rank and any page of the leaderboard cost O(log n) instead of a sort of everything
+class ScoreRanking {
+    static class Node {
+        final String user;
+        final int score, priority;
+        int size = 1;
+        Node left, right;
+
+        Node(String user, int score, int priority) {
+            this.user = user; this.score = score; this.priority = priority;
+        }
+    }
+
+    Node root;
+    Random rnd = new Random(0x5EED);
+
+    int size() { return size(root); }
+
+    static int size(Node n) { return n == null ? 0 : n.size; }
+
+    // negative if (user, score) ranks above n
+    static int compare(String user, int score, Node n) {
+        if (score != n.score) return score > n.score ? -1 : 1;
+        return user.compareTo(n.user);
+    }
+
+    void insert(String user, int score) {
+        root = insert(root, new Node(user, score, rnd.nextInt()));
+    }
+
+    void remove(String user, int score) {
+        root = remove(root, user, score);
+    }
+
+    // 1-based position of an entry that is in the tree
+    int rank(String user, int score) {
+        int above = 0;
+        for (Node n = root; n != null; ) {
+            int c = compare(user, score, n);
+            if (c == 0) return above + size(n.left) + 1;
+            if (c < 0) n = n.left;
+            else {
+                above += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return 0;
+    }
+
+    // "user:score" lines for positions from .. from+count-1
+    java.util.List<String> range(int from, int count) {
+        java.util.List<String> out = new ArrayList<>(Math.max(0, Math.min(count, size() - from)));
+        collect(root, from, from + count, 0, out);
+        return out;
+    }
+
+    private void collect(Node n, int from, int to, int offset, java.util.List<String> out) {
+        if (n == null || offset >= to || offset + n.size <= from) return;
+        collect(n.left, from, to, offset, out);
+        int pos = offset + size(n.left);
+        if (pos >= from && pos < to) out.add(n.user + ":" + n.score);
+        collect(n.right, from, to, pos + 1, out);
+    }
+
+    private static Node insert(Node n, Node add) {
+        if (n == null) return add;
+        if (add.priority > n.priority) {
+            Node[] parts = split(n, add.user, add.score);
+            add.left = parts[0];
+            add.right = parts[1];
+            return update(add);
+        }
+        if (compare(add.user, add.score, n) < 0) n.left = insert(n.left, add);
+        else n.right = insert(n.right, add);
+        return update(n);
+    }
+
+    private static Node remove(Node n, String user, int score) {
+        if (n == null) return null;
+        int c = compare(user, score, n);
+        if (c == 0) return merge(n.left, n.right);
+        if (c < 0) n.left = remove(n.left, user, score);
+        else n.right = remove(n.right, user, score);
+        return update(n);
+    }
+
+    // entries ranking above (user, score), and the rest
+    private static Node[] split(Node n, String user, int score) {
+        if (n == null) return new Node[2];
+        if (compare(user, score, n) > 0) {
+            Node[] parts = split(n.right, user, score);
+            n.right = parts[0];
+            parts[0] = update(n);
+            return parts;
+        }
+        Node[] parts = split(n.left, user, score);
+        n.left = parts[1];
+        parts[1] = update(n);
+        return parts;
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return update(a);
+        }
+        b.left = merge(a, b.left);
+        return update(b);
+    }
+
+    private static Node update(Node n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        return n;
     }
 }
 
@@ -154,20 +925,27 @@ class LoginPanel extends JPanel {
 
         JButton loginBtn = new JButton("Login");
         JButton regBtn = new JButton("Register");
+        // user data may still be loading, so the lookups run off the EDT and report back to it
         loginBtn.addActionListener(e -> {
             String u = userField.getText().trim();
             String pword = new String(passField.getPassword());
-            if (parent.userData.login(u,pword)) {
-                parent.currentUser = u;
-                info.setText("Logged in as "+u);
-                parent.showMenu();
-            } else info.setText("Invalid credentials");
+            info.setText("Checking...");
+            CompletableFuture.supplyAsync(() -> parent.userData.login(u,pword)).thenAccept(ok -> SwingUtilities.invokeLater(() -> {
+                if (ok) {
+                    parent.currentUser = u;
+                    info.setText("Logged in as "+u);
+                    parent.showMenu();
+                } else info.setText("Invalid credentials");
+            }));
         });
         regBtn.addActionListener(e -> {
             String u = userField.getText().trim();
             String pword = new String(passField.getPassword());
-            if (parent.userData.register(u,pword)) info.setText("Success! Proceed to login.");
-            else info.setText("Error - User Exists or Invalid Input");
+            info.setText("Checking...");
+            CompletableFuture.supplyAsync(() -> parent.userData.register(u,pword)).thenAccept(ok -> SwingUtilities.invokeLater(() -> {
+                if (ok) info.setText("Success! Proceed to login.");
+                else info.setText("Error - User Exists or Invalid Input");
+            }));
         });
 
         c.gridy++; c.gridx=0; add(loginBtn,c);
@@ -177,6 +955,49 @@ class LoginPanel extends JPanel {
         info.setForeground(Color.GREEN);
         add(info,c);
     }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (Startup.firstFrame()) SwingUtilities.invokeLater(parent::prebuild);
+    }
+}
+
+// milliseconds from JVM start to the first painted frame and to time-to-interactive, the point where the
+// login screen is up and a login can be answered without waiting on the user data
+class Startup {
+    static boolean enabled = false;  // set by -startup; nothing is printed otherwise
+    static long firstFrame = -1, usersLoaded = -1;
+    static boolean reported = false;
+
+    static long uptime() {
+        return java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    static void mark(String phase) {
+        if (enabled) System.out.println("startup: " + phase + " at " + uptime() + " ms");
+    }
+
+    // true the first time only
+    static synchronized boolean firstFrame() {
+        if (firstFrame >= 0) return false;
+        firstFrame = uptime();
+        mark("first frame");
+        report();
+        return true;
+    }
+
+    static synchronized void usersLoaded() {
+        usersLoaded = uptime();
+        report();
+    }
+
+    private static void report() {
+        if (!enabled || reported || firstFrame < 0 || usersLoaded < 0) return;
+        reported = true;
+        System.out.println("startup: time to first frame " + firstFrame + " ms, user data loaded " + usersLoaded
+                + " ms, time to interactive " + Math.max(firstFrame, usersLoaded) + " ms");
+    }
 }
 
 
@@ -242,57 +1063,22 @@ class MenuPanel extends JPanel {
        //leaderboard
         leaderboardBtn.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                try {
-                    File file = new File("scores.txt");
-                    if (!file.exists()) {
+                CompletableFuture.supplyAsync(() -> parent.userData.topScores(5)).thenAccept(scoreList -> SwingUtilities.invokeLater(() -> {
+                    if (scoreList.isEmpty()) {
                         JOptionPane.showMessageDialog(null, "No scores yet!");
                         return;
                     }
-                    
-                    BufferedReader reader = new BufferedReader(new FileReader(file));
-                    String line;
-                    ArrayList<String> scoreList = new ArrayList<>();
-                    
-                    while ((line = reader.readLine()) != null) {
-                        scoreList.add(line);
-                    }
-                    reader.close();
-                    
-                    for (int i = 0; i < scoreList.size(); i++) {
-                        for (int j = 0; j < scoreList.size() - 1; j++) {
-                            String[] parts1 = scoreList.get(j).split(":");
-                            String[] parts2 = scoreList.get(j + 1).split(":");
-                            
-                            if (parts1.length == 2 && parts2.length == 2) {
-                                try {
-                                    int score1 = Integer.parseInt(parts1[1]);
-                                    int score2 = Integer.parseInt(parts2[1]);
-                                    
-                                    if (score1 < score2) {
-                                        String temp = scoreList.get(j);
-                                        scoreList.set(j, scoreList.get(j + 1));
-                                        scoreList.set(j + 1, temp);
-                                    }
-                                } catch (NumberFormatException ex) {}
-                            }
-                        }
-                    }
-                    
+
                     String message = "TOP SCORES:\n";
-                    int count = Math.min(5, scoreList.size());
-                    
-                    for (int i = 0; i < count; i++) {
+                    for (int i = 0; i < scoreList.size(); i++) {
                         String[] parts = scoreList.get(i).split(":");
                         if (parts.length == 2) {
                             message += (i + 1) + ". " + parts[0] + ": " + parts[1] + "\n";
                         }
                     }
-                    
+
                     JOptionPane.showMessageDialog(null, message);
-                    
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(null, "Error loading scores!");
-                }
+                }));
             }
         });
     }
@@ -301,619 +1087,2037 @@ class MenuPanel extends JPanel {
         hi.setText("Pilot: "+parent.currentUser);
         mapLabel.setText("Map: "+maps[parent.chosenMap]);
         shipLabel.setText("Ship: "+ships[parent.chosenShip]);
-        scoreLabel.setText("High Score: "+parent.userData.getHighScore(parent.currentUser));
+        // the user data may still be loading, so the score is looked up off the EDT like the login is
+        String user = parent.currentUser;
+        UserData data = parent.userData;
+        scoreLabel.setText("High Score: loading...");
+        CompletableFuture.supplyAsync(() -> {
+            int rank = data.rank(user);
+            return "High Score: " + data.getHighScore(user) + (rank > 0 ? "   Rank: #" + rank + " of " + data.rankedCount() : "");
+        }).thenAccept(text -> SwingUtilities.invokeLater(() -> {
+            if (Objects.equals(user, parent.currentUser)) scoreLabel.setText(text);
+        }));
     }
 }
 
 
 abstract class SpaceObject {
     double x, y;
+    double px, py;  // position before the last tick, for drawing between ticks
     int w, h;
     double vx, vy;
-    Color color = Color.WHITE;
-    boolean alive = true;
     
     SpaceObject(double x, double y, int w, int h){
         this.x=x; this.y=y; this.w=w; this.h=h;
+        px = x; py = y;
     }
     
-    abstract void move();
-    abstract void draw(Graphics2D g);
-    
-    boolean collidesWith(SpaceObject other) {
-        return x < other.x + other.w && x + w > other.x &&
-               y < other.y + other.h && y + h > other.y;
-    }
-}
-
-class Asteroid extends SpaceObject {
-    int size;
-    int[][] shapePoints;
-    
-    Asteroid(double x, double y, int size, double vx, double vy) {
-        super(x, y, size==0?60:size==1?40:20, size==0?60:size==1?40:20);
-        this.size = size;
-        this.vx = vx * 0.5;
-        this.vy = vy * 0.5;
-        this.color = new Color(150, 150, 150);
-        
-        shapePoints = new int[8][2];
-        Random rnd = new Random();
-        for (int i = 0; i < 8; i++) {
-            double angle = 2 * Math.PI * i / 8;
-            double radius = w/2 * (0.7 + 0.3 * rnd.nextDouble());
-            shapePoints[i][0] = (int)(radius * Math.cos(angle));
-            shapePoints[i][1] = (int)(radius * Math.sin(angle));
-        }
-    }
-    
-    void move() {
-        x += vx;
-        y += vy;
-        
-        if (x < -w) x = 800;
-        if (x > 800) x = -w;
-        if (y < -h) y = 600;
-        if (y > 600) y = -h;
-    }
-    
-    void draw(Graphics2D g) {
-        int centerX = (int)x + w/2;
-        int centerY = (int)y + h/2;
-        
-        g.setColor(color);
-        for (int i = 0; i < shapePoints.length; i++) {
-            int next = (i + 1) % shapePoints.length;
-            g.drawLine(centerX + shapePoints[i][0], centerY + shapePoints[i][1],
-                      centerX + shapePoints[next][0], centerY + shapePoints[next][1]);
-        }
-        
-        g.fillRect(centerX-2, centerY-2, 4, 4);
-        g.fillRect(centerX+shapePoints[2][0]/2, centerY+shapePoints[2][1]/2, 3, 3);
-        g.fillRect(centerX+shapePoints[5][0]/2, centerY+shapePoints[5][1]/2, 3, 3);
-    }
-}
+    // step scales the per-60Hz velocities, sub is the tick length in 1/240 s
+    abstract void move(double step, int sub);
+    abstract void draw(RenderQueue q, double alpha);
 
-class UFO extends SpaceObject {
-    int dir = 1;
-    
-    UFO(double x, double y) {
-        super(x, y, 40, 20);
-        this.vx = 1.5;
-        this.color = Color.RED;
-    }
-    
-    void move() {
-        x += vx * dir * 0.8;
-        
-        if (x < 20 || x > 760) {
-            dir = -dir;
-        }
-        
-        if (y < 20) y = 20;
-        if (y > 580) y = 580;
-    }
-    
-    void draw(Graphics2D g) {
-        int drawX = (int)x;
-        int drawY = (int)y;
-        
-        g.setColor(color);
-        for (int i = 0; i < 3; i++) {
-            g.fillRect(drawX + i*5, drawY, 4, 4);
-            g.fillRect(drawX + i*5, drawY+4, 4, 4);
-        }
-        
-        g.fillRect(drawX+5, drawY+8, 10, 6);
-        
-        g.setColor(Color.GREEN);
-        g.fillRect(drawX+10, drawY+4, 3, 3);
-        g.fillRect(drawX+20, drawY+4, 3, 3);
+    // a jump this long is a wrap or a respawn, so it is drawn where it landed
+    static double lerp(double from, double to, double alpha) {
+        if (alpha >= 1 || Math.abs(to - from) > 100) return to;
+        return from + (to - from) * alpha;
     }
 }
 
 class PlayerShip extends SpaceObject {
     int health = 3;
-    int blinkTimer = 0;
+    int blinkTimer = 0;   // in 1/240 s, like every other timer in the simulation
     int shipType = 0;
     double speed = 2.5;
     
     PlayerShip(double x, double y, int shipType) {
         super(x, y, 30, 30);
         this.shipType = shipType;
-        this.color = Color.GREEN;
     }
     
-    void move() {
-        x += vx;
-        y += vy;
+    void move(double step, int sub) {
+        px = x;
+        py = y;
+        x += vx * step;
+        y += vy * step;
         
         if (x < 0) { x = 0; vx = 0; }
         if (x > 770) { x = 770; vx = 0; }
         if (y < 0) { y = 0; vy = 0; }
         if (y > 570) { y = 570; vy = 0; }
         
-        if (blinkTimer > 0) blinkTimer--;
+        if (blinkTimer > 0) blinkTimer = Math.max(0, blinkTimer - sub);
     }
     
-    void draw(Graphics2D g) {
-        if (blinkTimer > 0 && (blinkTimer/4) % 2 == 0) return;
-        
-        int drawX = (int)x;
-        int drawY = (int)y;
-        
-        g.setColor(color);
-
+    boolean visible() {
+        return !(blinkTimer > 0 && (blinkTimer/16) % 2 == 0);
+    }
+    
+    void draw(RenderQueue q, double alpha) {
+        if (!visible()) return;
+        drawHull(q, (int)lerp(px, x, alpha), (int)lerp(py, y, alpha));
+    }
+    
+    void drawHull(RenderQueue q, int drawX, int drawY) {
         if (shipType == 0) {
-            int[] xPts = {drawX + 15, drawX, drawX + 30};
-            int[] yPts = {drawY, drawY + 30, drawY + 30};
-            g.fillPolygon(xPts, yPts, 3);
-
-            g.setColor(Color.CYAN);
-            g.fillRect(drawX + 13, drawY + 8, 4, 8);
-
-            g.setColor(Color.ORANGE);
-            g.fillRect(drawX + 12, drawY + 28, 6, 4);
+            q.triangle(RenderQueue.HULL, drawX + 15, drawY, drawX, drawY + 30, drawX + 30, drawY + 30);
+            q.rect(RenderQueue.COCKPIT, drawX + 13, drawY + 8, 4, 8);
+            q.rect(RenderQueue.ENGINE, drawX + 12, drawY + 28, 6, 4);
         } 
         else if (shipType == 1) {
-            g.fillRect(drawX + 10, drawY + 10, 10, 10);
-            g.fillRect(drawX,      drawY + 13, 30, 4);
-            g.fillRect(drawX + 13, drawY,      4, 30);
+            q.rect(RenderQueue.HULL, drawX + 10, drawY + 10, 10, 10);
+            q.rect(RenderQueue.HULL, drawX,      drawY + 13, 30, 4);
+            q.rect(RenderQueue.HULL, drawX + 13, drawY,      4, 30);
 
-            g.setColor(Color.ORANGE);
-            g.fillRect(drawX + 3,  drawY + 25, 4, 4);
-            g.fillRect(drawX + 23, drawY + 25, 4, 4);
+            q.rect(RenderQueue.ENGINE, drawX + 3,  drawY + 25, 4, 4);
+            q.rect(RenderQueue.ENGINE, drawX + 23, drawY + 25, 4, 4);
         } 
         else {
-            g.fillRect(drawX + 5, drawY + 8, 20, 14);
-            g.fillRect(drawX,     drawY + 10, 5, 10);
-            g.fillRect(drawX+25,  drawY + 10, 5, 10);
+            q.rect(RenderQueue.HULL, drawX + 5, drawY + 8, 20, 14);
+            q.rect(RenderQueue.HULL, drawX,     drawY + 10, 5, 10);
+            q.rect(RenderQueue.HULL, drawX+25,  drawY + 10, 5, 10);
 
-            g.setColor(Color.ORANGE);
-            g.fillRect(drawX + 10, drawY + 22, 4, 6);
-            g.fillRect(drawX + 16, drawY + 22, 4, 6);
+            q.rect(RenderQueue.ENGINE, drawX + 10, drawY + 22, 4, 6);
+            q.rect(RenderQueue.ENGINE, drawX + 16, drawY + 22, 4, 6);
         }
     }
     
     void hit() {
         health--;
-        blinkTimer = 36;
+        blinkTimer = 144;
     }
 }
 
-class Laser extends SpaceObject {
-    int life = 30;
-    boolean isPlayerLaser = true;
-    
-    Laser(double x, double y, double vx, double vy, boolean isPlayerLaser) {
-        super(x, y, 3, 15);
-        this.vx = vx * 1.2;
-        this.vy = vy * 1.2;
-        this.isPlayerLaser = isPlayerLaser;
-        this.color = isPlayerLaser ? Color.CYAN : Color.RED;
+// every asteroid, ufo, laser and power-up lives in these parallel arrays; each type owns a block of ids
+class EntityStore {
+    // asteroids sit in the last block so splitting rocks mid-tick never moves the ids of the other types
+    static final int LASER = 0, POWERUP = 1, UFO = 2, ASTEROID = 3, TYPES = 4;
+    static final int SHAPE = 16;
+    int[] base = new int[TYPES + 1];
+    int[] top = new int[TYPES];
+    int[] live = new int[TYPES];
+    int[] dead = new int[TYPES];
+    double[] x, y, vx, vy;
+    double[] px, py;  // positions before the last moveAll, for interpolated drawing
+    int[] w, h;
+    int[] kind;   // asteroid size, power-up type, 1 for player lasers
+    int[] timer;  // laser life and power-up pulse in 1/240 s, ufo direction
+    int[] shape;  // asteroid outline offsets, SHAPE ints per id
+    int[] uid;    // never reused, so renderers can key caches on it across compaction
+    int nextUid = 0;
+    long[] alive;
+    // asteroid movement fans out over this pool once the block is big enough; null keeps it serial
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    static int parallelThreshold = 16384;
+    // velocities are per 60 Hz tick; step scales them and sub is the tick length in 1/240 s
+    double step = 1;
+    int sub = 4;
+
+    EntityStore() {
+        int[] caps = {64, 4, 4, 64};
+        for (int t = 0; t < TYPES; t++) base[t + 1] = base[t] + caps[t];
+        int n = base[TYPES];
+        x = new double[n]; y = new double[n]; vx = new double[n]; vy = new double[n];
+        px = new double[n]; py = new double[n];
+        w = new int[n]; h = new int[n]; kind = new int[n]; timer = new int[n];
+        shape = new int[n * SHAPE];
+        uid = new int[n];
+        alive = new long[(n + 63) / 64];
     }
-    
-    void move() {
-        x += vx;
-        y += vy;
-        life--;
-        if (life <= 0) alive = false;
+
+    void clear() {
+        Arrays.fill(alive, 0);
+        Arrays.fill(top, 0);
+        Arrays.fill(live, 0);
+        Arrays.fill(dead, 0);
     }
-    
-    void draw(Graphics2D g) {
-        int drawX = (int)x;
-        int drawY = (int)y;
-        
-        if (isPlayerLaser) {
-            g.setColor(color);
-            g.fillRect(drawX, drawY, w, h);
-            g.setColor(Color.WHITE);
-            g.fillRect(drawX+1, drawY+1, w-2, h-2);
-            
-            if (life % 4 < 2) {
-                g.setColor(new Color(0, 255, 255, 100));
-                g.fillRect(drawX-1, drawY, w+2, h);
-            }
-        } else {
-            g.setColor(color);
-            g.fillRect(drawX, drawY, w, h);
+
+    int end(int t) { return base[t] + top[t]; }
+
+    // copies the live blocks of o and everything drawing reads, reusing these arrays unless o has outgrown them
+    void copyFrom(EntityStore o) {
+        int n = o.base[TYPES];
+        if (x.length != n) {
+            x = new double[n]; y = new double[n]; px = new double[n]; py = new double[n];
+            vx = new double[n]; vy = new double[n];
+            w = new int[n]; h = new int[n]; kind = new int[n]; timer = new int[n];
+            shape = new int[n * SHAPE];
+            uid = new int[n];
+            alive = new long[o.alive.length];
+        }
+        System.arraycopy(o.base, 0, base, 0, TYPES + 1);
+        System.arraycopy(o.top, 0, top, 0, TYPES);
+        System.arraycopy(o.live, 0, live, 0, TYPES);
+        System.arraycopy(o.dead, 0, dead, 0, TYPES);
+        System.arraycopy(o.alive, 0, alive, 0, alive.length);
+        for (int t = 0; t < TYPES; t++) {
+            int from = base[t], len = top[t];
+            System.arraycopy(o.x, from, x, from, len); System.arraycopy(o.y, from, y, from, len);
+            System.arraycopy(o.px, from, px, from, len); System.arraycopy(o.py, from, py, from, len);
+            System.arraycopy(o.w, from, w, from, len); System.arraycopy(o.h, from, h, from, len);
+            System.arraycopy(o.kind, from, kind, from, len); System.arraycopy(o.timer, from, timer, from, len);
+            System.arraycopy(o.uid, from, uid, from, len);
+            if (t == ASTEROID) System.arraycopy(o.shape, from * SHAPE, shape, from * SHAPE, len * SHAPE);
         }
+        nextUid = o.nextUid;
     }
-}
 
+    boolean isAlive(int id) { return (alive[id >>> 6] & (1L << id)) != 0; }
 
-class PowerUp extends SpaceObject {
-    int type;
-    int pulse = 0;
-    
-    PowerUp(double x, double y, int type) {
-        super(x, y, 20, 20);
-        this.type = type;
-        this.vy = 1.2;
-        
-        if (type == 0) {
-            color = Color.CYAN;
-        } else if (type == 1) {
-            color = Color.MAGENTA;
-        } else {
-            color = Color.YELLOW;
-        }
+    int typeOf(int id) {
+        int t = 0;
+        while (id >= base[t + 1]) t++;
+        return t;
     }
-    
-    void move() {
-        y += vy;
-        pulse = (pulse + 1) % 60;
-        if (y > 600) alive = false;
+
+    // the k-th live entity of a type, in id order
+    int nth(int t, int k) {
+        for (int i = base[t]; i < end(t); i++) {
+            if (isAlive(i) && k-- == 0) return i;
+        }
+        return -1;
     }
-    
-    void draw(Graphics2D g) {
-        int drawX = (int)x;
-        int drawY = (int)y;
-        
-        int size = 16 + (int)(4 * Math.sin(pulse * 0.1));
-        
-        g.setColor(color);
-        int[] xPoints = {drawX+size/2, drawX+size, drawX+size/2, drawX};
-        int[] yPoints = {drawY, drawY+size/2, drawY+size, drawY+size/2};
-        g.fillPolygon(xPoints, yPoints, 4);
-        
-        g.setColor(Color.BLACK);
-        if (type == 0) {
-            g.drawString("S", drawX+7, drawY+13);
-        } else if (type == 1) {
-            g.drawString("F", drawX+7, drawY+13);
-        } else {
-            g.drawString("P", drawX+7, drawY+13);
+
+    boolean overlaps(int a, int b) {
+        return x[a] < x[b] + w[b] && x[a] + w[a] > x[b] &&
+               y[a] < y[b] + h[b] && y[a] + h[a] > y[b];
+    }
+
+    boolean overlaps(int id, SpaceObject o) {
+        return o.x < x[id] + w[id] && o.x + o.w > x[id] &&
+               o.y < y[id] + h[id] && o.y + o.h > y[id];
+    }
+
+    int add(int t, double x0, double y0, int w0, int h0, double vx0, double vy0) {
+        if (top[t] == base[t + 1] - base[t]) grow(t);
+        int id = base[t] + top[t]++;
+        alive[id >>> 6] |= 1L << id;
+        live[t]++;
+        x[id] = x0; y[id] = y0; w[id] = w0; h[id] = h0; vx[id] = vx0; vy[id] = vy0;
+        px[id] = x0; py[id] = y0;
+        kind[id] = 0;
+        timer[id] = 0;
+        uid[id] = ++nextUid;
+        return id;
+    }
+
+    int addAsteroid(double x0, double y0, int size, double vx0, double vy0, Random rnd) {
+        int s = size == 0 ? 60 : size == 1 ? 40 : 20;
+        int id = add(ASTEROID, x0, y0, s, s, vx0 * 0.5, vy0 * 0.5);
+        kind[id] = size;
+        for (int i = 0; i < 8; i++) {
+            double angle = 2 * Math.PI * i / 8;
+            double radius = s/2 * (0.7 + 0.3 * rnd.nextDouble());
+            // StrictMath so a replay builds the same outlines on every JVM
+            shape[id * SHAPE + i * 2] = (int)(radius * StrictMath.cos(angle));
+            shape[id * SHAPE + i * 2 + 1] = (int)(radius * StrictMath.sin(angle));
+        }
+        return id;
+    }
+
+    int addUfo(double x0, double y0) {
+        int id = add(UFO, x0, y0, 40, 20, 1.5, 0);
+        timer[id] = 1;
+        return id;
+    }
+
+    int addLaser(double x0, double y0, double vx0, double vy0, boolean playerLaser) {
+        int id = add(LASER, x0, y0, 3, 15, vx0 * 1.2, vy0 * 1.2);
+        kind[id] = playerLaser ? 1 : 0;
+        timer[id] = 120;
+        return id;
+    }
+
+    int addPowerUp(double x0, double y0, int type) {
+        int id = add(POWERUP, x0, y0, 20, 20, 0, 1.2);
+        kind[id] = type;
+        return id;
+    }
+
+    // only marks the id dead; ids stay put until compact() runs at the end of the tick
+    void kill(int id) {
+        if (!isAlive(id)) return;
+        alive[id >>> 6] &= ~(1L << id);
+        int t = typeOf(id);
+        live[t]--;
+        dead[t]++;
+    }
+
+    // slides the live ids of each block down over the dead ones in a single pass, keeping their order
+    void compact() {
+        for (int t = 0; t < TYPES; t++) {
+            if (dead[t] == 0) continue;
+            int n = base[t];
+            for (int i = base[t]; i < end(t); i++) {
+                if (!isAlive(i)) continue;
+                if (i != n) moveId(i, n);
+                n++;
+            }
+            top[t] = n - base[t];
+            dead[t] = 0;
+        }
+    }
+
+    double drawX(int id, double alpha) { return SpaceObject.lerp(px[id], x[id], alpha); }
+
+    double drawY(int id, double alpha) { return SpaceObject.lerp(py[id], y[id], alpha); }
+
+    void moveAll() {
+        int n = base[TYPES];
+        System.arraycopy(x, 0, px, 0, n);
+        System.arraycopy(y, 0, py, 0, n);
+        int from = base[ASTEROID], to = end(ASTEROID);
+        if (pool == null || to - from < parallelThreshold) moveAsteroids(from, to);
+        else pool.invoke(new MoveTask(from, to, Math.max(1024, (to - from) / (pool.getParallelism() * 4))));
+
+        for (int i = base[UFO]; i < end(UFO); i++) {
+            if (!isAlive(i)) continue;
+            x[i] += vx[i] * timer[i] * 0.8 * step;
+            if (x[i] < 20 || x[i] > 760) timer[i] = -timer[i];
+            if (y[i] < 20) y[i] = 20;
+            if (y[i] > 580) y[i] = 580;
+        }
+
+        for (int i = base[LASER]; i < end(LASER); i++) {
+            if (!isAlive(i)) continue;
+            x[i] += vx[i] * step;
+            y[i] += vy[i] * step;
+            timer[i] -= sub;
+            if (timer[i] <= 0 || x[i] < -20 || x[i] > 820 || y[i] < -20 || y[i] > 620) kill(i);
+        }
+
+        for (int i = base[POWERUP]; i < end(POWERUP); i++) {
+            if (!isAlive(i)) continue;
+            y[i] += vy[i] * step;
+            timer[i] = (timer[i] + sub) % 240;
+            if (y[i] > 600) kill(i);
+        }
+    }
+
+    // each asteroid only touches its own slots, so any split of the range gives the serial result
+    void moveAsteroids(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isAlive(i)) continue;
+            x[i] += vx[i] * step;
+            y[i] += vy[i] * step;
+            if (x[i] < -w[i]) x[i] = 800;
+            if (x[i] > 800) x[i] = -w[i];
+            if (y[i] < -h[i]) y[i] = 600;
+            if (y[i] > 600) y[i] = -h[i];
+        }
+    }
+
+    class MoveTask extends RecursiveAction {
+        final int from, to, grain;
+
+        MoveTask(int from, int to, int grain) {
+            this.from = from; this.to = to; this.grain = grain;
+        }
+
+        protected void compute() {
+            if (to - from <= grain) {
+                moveAsteroids(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new MoveTask(from, mid, grain), new MoveTask(mid, to, grain));
+        }
+    }
+
+    private void moveId(int from, int to) {
+        x[to] = x[from]; y[to] = y[from]; vx[to] = vx[from]; vy[to] = vy[from];
+        px[to] = px[from]; py[to] = py[from];
+        w[to] = w[from]; h[to] = h[from]; kind[to] = kind[from]; timer[to] = timer[from];
+        uid[to] = uid[from];
+        System.arraycopy(shape, from * SHAPE, shape, to * SHAPE, SHAPE);
+        alive[to >>> 6] |= 1L << to;
+        alive[from >>> 6] &= ~(1L << from);
+    }
+
+    // doubles the block of type t and slides every later block up
+    private void grow(int t) {
+        int from = base[t + 1], shift = base[t + 1] - base[t], n = base[TYPES];
+        x = shifted(x, from, shift); y = shifted(y, from, shift);
+        vx = shifted(vx, from, shift); vy = shifted(vy, from, shift);
+        px = shifted(px, from, shift); py = shifted(py, from, shift);
+        w = shifted(w, from, shift); h = shifted(h, from, shift);
+        kind = shifted(kind, from, shift); timer = shifted(timer, from, shift);
+        uid = shifted(uid, from, shift);
+        shape = shifted(shape, from * SHAPE, shift * SHAPE);
+        long[] old = alive;
+        alive = new long[(n + shift + 63) / 64];
+        for (int i = 0; i < n; i++) {
+            if ((old[i >>> 6] & (1L << i)) == 0) continue;
+            int j = i < from ? i : i + shift;
+            alive[j >>> 6] |= 1L << j;
         }
+        for (int u = t + 1; u <= TYPES; u++) base[u] += shift;
+    }
+
+    private static double[] shifted(double[] a, int from, int shift) {
+        double[] b = new double[a.length + shift];
+        System.arraycopy(a, 0, b, 0, from);
+        System.arraycopy(a, from, b, from + shift, a.length - from);
+        return b;
+    }
+
+    private static int[] shifted(int[] a, int from, int shift) {
+        int[] b = new int[a.length + shift];
+        System.arraycopy(a, 0, b, 0, from);
+        System.arraycopy(a, from, b, from + shift, a.length - from);
+        return b;
     }
 }
 
+// explosion flashes as parallel arrays, shrunk in place every tick instead of reallocated
+class Explosions {
+    int[] x = new int[64], y = new int[64], r = new int[64];  // r in quarter pixels so any tick rate shrinks it evenly
+    int count = 0;
 
-class GamePanel extends JPanel implements Runnable, KeyListener {
-    GameFrame parent;
-    Thread gameThread;
-    volatile boolean running = false;
+    void add(int x0, int y0, int r0) {
+        if (count == x.length) {
+            x = Arrays.copyOf(x, count * 2);
+            y = Arrays.copyOf(y, count * 2);
+            r = Arrays.copyOf(r, count * 2);
+        }
+        x[count] = x0; y[count] = y0; r[count] = r0 * 4;
+        count++;
+    }
+
+    // shrinks by one pixel per 60 Hz tick, sub being the tick length in 1/240 s
+    void decay(int sub) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (r[i] - sub <= 0) continue;
+            x[n] = x[i]; y[n] = y[i]; r[n] = r[i] - sub;
+            n++;
+        }
+        count = n;
+    }
+
+    void clear() { count = 0; }
+
+    void copyFrom(Explosions o) {
+        if (x.length < o.count) {
+            x = new int[o.x.length]; y = new int[o.x.length]; r = new int[o.x.length];
+        }
+        System.arraycopy(o.x, 0, x, 0, o.count);
+        System.arraycopy(o.y, 0, y, 0, o.count);
+        System.arraycopy(o.r, 0, r, 0, o.count);
+        count = o.count;
+    }
+}
+
+// uniform grid over the playfield, rebuilt every tick so collision passes only test nearby entities
+class SpatialGrid {
+    static final int MARGIN = 64;
+    final int cellSize, cols, rows;
+    int[] cellHead;
+    int[] entryNext = new int[1024];
+    int[] entryId = new int[1024];
+    int entries = 0;
+    int[] seen = new int[256];
+    int stamp = 0;
+    int[] hits = new int[64];
+
+    SpatialGrid(int width, int height, int cellSize) {
+        this.cellSize = cellSize;
+        cols = (width + 2 * MARGIN) / cellSize + 1;
+        rows = (height + 2 * MARGIN) / cellSize + 1;
+        cellHead = new int[cols * rows];
+        Arrays.fill(cellHead, -1);
+    }
+
+    void clear() {
+        Arrays.fill(cellHead, -1);
+        entries = 0;
+    }
+
+    int cellX(double x) {
+        int c = (int) Math.floor((x + MARGIN) / cellSize);
+        return c < 0 ? 0 : c >= cols ? cols - 1 : c;
+    }
+
+    int cellY(double y) {
+        int c = (int) Math.floor((y + MARGIN) / cellSize);
+        return c < 0 ? 0 : c >= rows ? rows - 1 : c;
+    }
+
+    void insert(int id, double x, double y, int w, int h) {
+        if (id >= seen.length) seen = Arrays.copyOf(seen, Math.max(id + 1, seen.length * 2));
+        int cx1 = cellX(x + w), cy1 = cellY(y + h);
+        for (int cy = cellY(y); cy <= cy1; cy++) {
+            for (int cx = cellX(x); cx <= cx1; cx++) {
+                if (entries == entryId.length) {
+                    entryId = Arrays.copyOf(entryId, entries * 2);
+                    entryNext = Arrays.copyOf(entryNext, entries * 2);
+                }
+                int cell = cy * cols + cx;
+                entryId[entries] = id;
+                entryNext[entries] = cellHead[cell];
+                cellHead[cell] = entries++;
+            }
+        }
+    }
+
+    // collects every id sharing a cell with the box into hits, each one once
+    int query(double x, double y, int w, int h) {
+        if (++stamp == 0) { Arrays.fill(seen, 0); stamp = 1; }
+        int n = 0;
+        int cx1 = cellX(x + w), cy1 = cellY(y + h);
+        for (int cy = cellY(y); cy <= cy1; cy++) {
+            for (int cx = cellX(x); cx <= cx1; cx++) {
+                for (int e = cellHead[cy * cols + cx]; e != -1; e = entryNext[e]) {
+                    int id = entryId[e];
+                    if (seen[id] == stamp) continue;
+                    seen[id] = stamp;
+                    if (n == hits.length) hits = Arrays.copyOf(hits, n * 2);
+                    hits[n++] = id;
+                }
+            }
+        }
+        return n;
+    }
+}
+
+
+// debris and sparks as a structure-of-arrays ring: a burst appends at the head and, once the ring is full, takes
+// the oldest slots. the arrays double up to CAPACITY as bursts need them and are never reallocated after that,
+// so a running game emits, moves and drops particles without allocating. they are decoration only: their own
+// random stream and no part in stateHash, so replays and the rules never see them
+class Particles {
+    static final int CAPACITY = 1 << 17;
+    static final int SPARK = 1, DEBRIS = 2;   // sizes in pixels
+
+    float[] x = new float[1024], y = new float[1024], vx = new float[1024], vy = new float[1024];
+    int[] life = new int[1024], ttl = new int[1024], color = new int[1024];  // life and ttl in 1/240 s
+    byte[] size = new byte[1024];
+    int head = 0, count = 0;   // the window is the count slots before head, oldest first
+    float step = 1;            // of the last update, to draw between ticks
+    int seed = 0x2545F491;
+
+    int mask() { return x.length - 1; }
+
+    int oldest() { return (head - count) & mask(); }
+
+    void clear() { head = count = 0; }
+
+    // n particles flung out of (cx, cy) at up to speed px per 60 Hz tick, living ttl to 2 * ttl
+    void burst(float cx, float cy, int n, float speed, int rgb, int px, int ttl0) {
+        for (int k = 0; k < n; k++) {
+            if (count == x.length) {
+                if (x.length < CAPACITY) grow(x.length * 2);
+                else count--;   // full: the oldest slot is reused
+            }
+            int i = head;
+            double angle = random() * 2 * Math.PI;
+            float v = speed * (0.2f + 0.8f * random());
+            x[i] = cx;
+            y[i] = cy;
+            vx[i] = v * (float) Math.cos(angle);
+            vy[i] = v * (float) Math.sin(angle);
+            ttl[i] = ttl0 + (int) (ttl0 * random());
+            life[i] = ttl[i];
+            color[i] = rgb;
+            size[i] = (byte) px;
+            head = (head + 1) & mask();
+            count++;
+        }
+    }
+
+    // xorshift, kept apart from the simulation's Random
+    float random() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return (seed >>> 8) * (1f / (1 << 24));
+    }
+
+    void grow(int capacity) {
+        int from = oldest(), first = Math.min(count, x.length - from), n = count;
+        x = linear(x, new float[capacity], from, first, n);
+        y = linear(y, new float[capacity], from, first, n);
+        vx = linear(vx, new float[capacity], from, first, n);
+        vy = linear(vy, new float[capacity], from, first, n);
+        life = linear(life, new int[capacity], from, first, n);
+        ttl = linear(ttl, new int[capacity], from, first, n);
+        color = linear(color, new int[capacity], from, first, n);
+        size = linear(size, new byte[capacity], from, first, n);
+        head = n;
+    }
+
+    // the n slots of a ring starting at from, wrapping after first, into the front of dst
+    static <T> T linear(T src, T dst, int from, int first, int n) {
+        System.arraycopy(src, from, dst, 0, first);
+        System.arraycopy(src, 0, dst, first, n - first);
+        return dst;
+    }
+
+    // sub is the tick length in 1/240 s and step the same in 60 Hz ticks; the window is walked in at most
+    // two straight runs of plain array arithmetic, which the JIT turns into vector code
+    void update(float step, int sub) {
+        this.step = step;
+        int from = oldest(), n = count;
+        int first = Math.min(n, x.length - from);
+        move(from, from + first, step, sub);
+        move(0, n - first, step, sub);
+        // dead particles in the middle wait for the oldest end to reach them
+        while (count > 0 && life[oldest()] <= 0) count--;
+    }
+
+    void move(int from, int to, float step, int sub) {
+        for (int i = from; i < to; i++) {
+            x[i] += vx[i] * step;
+            y[i] += vy[i] * step;
+            life[i] -= sub;
+        }
+    }
+
+    // the window in order into slots 0..count of this one, growing only when the other has grown past it
+    void copyFrom(Particles o) {
+        if (x.length < o.x.length) {
+            int c = o.x.length;
+            x = new float[c]; y = new float[c]; vx = new float[c]; vy = new float[c];
+            life = new int[c]; ttl = new int[c]; color = new int[c]; size = new byte[c];
+        }
+        int from = o.oldest(), n = o.count;
+        int first = Math.min(n, o.x.length - from);
+        linear(o.x, x, from, first, n);
+        linear(o.y, y, from, first, n);
+        linear(o.vx, vx, from, first, n);
+        linear(o.vy, vy, from, first, n);
+        linear(o.life, life, from, first, n);
+        linear(o.ttl, ttl, from, first, n);
+        linear(o.color, color, from, first, n);
+        linear(o.size, size, from, first, n);
+        count = n;
+        head = n & mask();
+        step = o.step;
+    }
+
+    // every live particle straight into an 800-wide int raster, rows y0 to y1 only, fading towards black as
+    // it runs out; opaque, so the result does not depend on the target's alpha handling. alpha places the
+    // frame between the last two ticks, opaque is or-ed into each pixel for targets that carry alpha. bounds,
+    // if given, gets the left, top, right and bottom edges of the pixels written, empty when right <= left
+    void draw(int[] dst, int width, int height, double alpha, int opaque, int y0, int y1, int[] bounds) {
+        float back = (float) ((1 - alpha) * step);
+        int from = oldest();
+        int left = width, top = y1, right = 0, bottom = 0;
+        for (int k = 0, m = mask(); k < count; k++) {
+            int i = (from + k) & m;
+            if (life[i] <= 0) continue;
+            int px = (int) (x[i] - vx[i] * back), py = (int) (y[i] - vy[i] * back), s = size[i];
+            if (py + s <= y0 || py >= y1 || px + s <= 0 || px >= width) continue;
+            int fade = life[i] * 256 / ttl[i], c = color[i];
+            int rgb = opaque | ((c >> 16 & 255) * fade >> 8) << 16 | ((c >> 8 & 255) * fade >> 8) << 8 | ((c & 255) * fade >> 8);
+            int x0 = Math.max(px, 0), x1 = Math.min(px + s, width), r0 = Math.max(py, y0), r1 = Math.min(py + s, Math.min(y1, height));
+            for (int row = r0; row < r1; row++) {
+                for (int col = x0; col < x1; col++) dst[row * width + col] = rgb;
+            }
+            left = Math.min(left, x0);
+            right = Math.max(right, x1);
+            top = Math.min(top, r0);
+            bottom = Math.max(bottom, r1);
+        }
+        if (bounds != null) {
+            bounds[0] = left; bounds[1] = top; bounds[2] = right; bounds[3] = bottom;
+        }
+    }
+}
+
+// every rule of the game with no Swing attached, so it runs the same in a window or on a headless box
+class GameSimulation {
     PlayerShip player;
-    java.util.List<SpaceObject> asteroids = new ArrayList<>();
-    java.util.List<SpaceObject> ufos = new ArrayList<>();
-    java.util.List<Laser> lasers = new ArrayList<>();
-    java.util.List<PowerUp> powerups = new ArrayList<>();
+    EntityStore store = new EntityStore();
+    Explosions explosions = new Explosions();
+    Particles particles = new Particles();
     
     int score = 0;
     int mapIndex = 0;
-    BufferedImage bgImage;
     int tick = 0;
-    boolean leftPressed = false, rightPressed = false, upPressed = false, downPressed = false, spacePressed = false;
-    Font retro = new Font("Monospaced", Font.BOLD, 14);
+    boolean over = false;
+    // the only randomness in the rules; reseeded by setup so a seed plus the inputs replays a game exactly
     Random rnd = new Random();
-    String playerName;
+    long seed;
     int shipChoice = 0;
-    
-    java.util.List<int[]> stars = new ArrayList<>();
-    java.util.List<int[]> explosions = new ArrayList<>();
+    Runnable onGameOver;
+    Replay recording;
 
-    long lastShotTime = 0;
+    // one input byte per tick
+    static final int LEFT = 1, RIGHT = 2, UP = 4, DOWN = 8, FIRE = 16;
+    static final int SHOT_COOLDOWN = 60;  // 1/240 s units, 250 ms
+    int lastShotTime = -SHOT_COOLDOWN;
 
-   
-    private javax.swing.Timer focusTimer;
-    
-    GamePanel(GameFrame p) {
-        this.parent = p;
-        setFocusable(true);
-        setFocusTraversalKeysEnabled(false); // get arrow keys to work
-        setBackground(Color.BLACK);
-        addKeyListener(this);
-        
-        for (int i = 0; i < 150; i++) {
-            stars.add(new int[]{rnd.nextInt(800), rnd.nextInt(600), rnd.nextInt(3)+1});
-        }
+    // the rules were written against 60 Hz; every period and timer now counts in 1/240 s so 30, 60,
+    // 120 and 240 Hz all divide it, and 60 Hz plays out exactly as before
+    static final int[] TICK_RATES = {30, 60, 120, 240};
+    static int defaultTickRate = 60;
+    int tickRate = defaultTickRate;
+    int sub = 4;         // tick length in 1/240 s
+    double step = 1;     // tick length in 60 Hz ticks, scales every velocity
+    int time = 0;        // tick * sub
 
-        // again making sure the game window has the key 'focus' instead of the console below
-        focusTimer = new javax.swing.Timer(200, e -> {
-            if (running && !isFocusOwner()) {
-                requestFocusInWindow();
-            }
-        });
-        focusTimer.setRepeats(true);
+    static int stressAsteroids = 0;
+    static boolean naiveCollisions = false;
+    // one giant cell degrades the grid to the old all-pairs test, handy for comparing tick times
+    SpatialGrid grid = new SpatialGrid(800, 600, naiveCollisions ? 4096 : 64);
+    long tickNanos = 0;
+    // null unless someone is watching; updateGame reads it once per tick
+    volatile PhaseProfiler profiler;
+    // broad-phase candidates and hits of the last collision pass, for the JFR events
+    int pairsTested, pairHits;
+
+    void setup(int map, int ship) {
+        setup(map, ship, new Random().nextLong());
     }
 
-    void setup(int map, int ship, String user){
+    void setup(int map, int ship, long seed) {
         this.mapIndex = map;
         this.shipChoice = ship;
-        this.playerName = user;
+        this.seed = seed;
         this.score = 0;
-        asteroids.clear(); 
-        ufos.clear();
-        lasers.clear();
-        powerups.clear();
+        this.tick = 0;
+        this.time = 0;
+        this.over = false;
+        this.lastShotTime = -SHOT_COOLDOWN;
+        if (240 % tickRate != 0) throw new IllegalArgumentException("tick rate must divide 240: " + tickRate);
+        sub = 240 / tickRate;
+        step = sub / 4.0;
+        store.sub = sub;
+        store.step = step;
+        rnd.setSeed(seed);
+        store.clear();
         explosions.clear();
+        particles.clear();
         
         player = new PlayerShip(400, 300, shipChoice);
-        player.color = Color.GREEN;
+        if (stressAsteroids > 0) player.health = Integer.MAX_VALUE;
         
-        for (int i = 0; i < 6; i++) {
+        for (int i = 0; i < Math.max(6, stressAsteroids); i++) {
             double x = rnd.nextDouble() * 800;
             double y = rnd.nextDouble() * 600;
             double vx = (rnd.nextDouble() - 0.5) * 1.5;
             double vy = (rnd.nextDouble() - 0.5) * 1.5;
-            asteroids.add(new Asteroid(x, y, rnd.nextInt(3), vx, vy));
-        }
-        
-        bgImage = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = bgImage.createGraphics();
-        
-        if (map == 0) {
-            g.setColor(new Color(0, 0, 10));
-            g.fillRect(0, 0, 800, 600);
-        } else if (map == 1) {
-            g.setColor(new Color(20, 0, 30));
-            g.fillRect(0, 0, 800, 600);
-            g.setColor(new Color(80, 0, 120, 80));
-            for (int i = 0; i < 15; i++) {
-                int size = 50 + rnd.nextInt(50);
-                g.fillOval(rnd.nextInt(800), rnd.nextInt(600), size, size);
-            }
-        } else {
-            g.setColor(new Color(15, 15, 25));
-            g.fillRect(0, 0, 800, 600);
-            g.setColor(new Color(80, 80, 80, 100));
-            for (int i = 0; i < 25; i++) {
-                int size = 10 + rnd.nextInt(20);
-                g.fillOval(rnd.nextInt(800), rnd.nextInt(600), size, size);
-            }
-        }
-        
-        g.dispose();
-
-        // key 'focus' on game start
-        requestFocusInWindow();
-    }
-
-    void start() {
-        running = true;
-        if (gameThread == null || !gameThread.isAlive()) {
-            gameThread = new Thread(this);
-            gameThread.start();
-        }
-        // key 'focus' again
-        focusTimer.start();
-        requestFocusInWindow();
-    }
-
-    void stop() {
-        running = false;
-        focusTimer.stop();
-        try { if (gameThread != null) gameThread.join(); } catch (InterruptedException ignored) {}
-    }
-
-    @Override
-    public void run() {
-        long last = System.nanoTime();
-        final double nsPerTick = 1000000000.0 / 60.0;
-        double delta = 0;
-        while (running) {
-            long now = System.nanoTime();
-            delta += (now - last) / nsPerTick;
-            last = now;
-            boolean shouldRepaint = false;
-            while (delta >= 1) {
-                updateGame();
-                delta--;
-                shouldRepaint = true;
-            }
-            if (shouldRepaint) repaint();
-            try { Thread.sleep(10); } catch (InterruptedException ignored) {}
+            store.addAsteroid(x, y, rnd.nextInt(3), vx, vy, rnd);
         }
     }
 
     void shootLaser() {
-        if (!running) return;
+        if (over) return;
         
-        long currentTime = System.currentTimeMillis();
-        
-        if (currentTime - lastShotTime < 250) {
+        if (time - lastShotTime < SHOT_COOLDOWN) {
             return;
         }
-        lastShotTime = currentTime;
+        lastShotTime = time;
         
         double laserX = player.x + player.w/2 - 1.5;
         double laserY = player.y - 10;
         
-        Laser laser = new Laser(laserX, laserY, 0, -8, true);
-        lasers.add(laser);
+        store.addLaser(laserX, laserY, 0, -8, true);
         
         if (shipChoice == 1) {
-            lasers.add(new Laser(laserX - 10, laserY, 0, -8, true));
-            lasers.add(new Laser(laserX + 10, laserY, 0, -8, true));
+            store.addLaser(laserX - 10, laserY, 0, -8, true);
+            store.addLaser(laserX + 10, laserY, 0, -8, true);
+        }
+    }
+
+    void updateGame(int input) {
+        if (!GameEvents.TICK.isEnabled()) {
+            step(input);
+            return;
+        }
+        GameEvents.Tick event = new GameEvents.Tick();
+        event.begin();
+        step(input);
+        if (event.shouldCommit()) {
+            event.tick = tick;
+            event.asteroids = store.live[EntityStore.ASTEROID];
+            event.ufos = store.live[EntityStore.UFO];
+            event.lasers = store.live[EntityStore.LASER];
+            event.explosions = explosions.count;
+            event.particles = particles.count;
+            event.commit();
         }
     }
 
-    void updateGame() {
+    private void step(int input) {
+        PhaseProfiler prof = profiler;
+        long t0 = prof == null ? 0 : System.nanoTime(), mark = t0;
+        if (recording != null) recording.record(input);
         tick++;
+        time += sub;
         
         player.vx = 0;
         player.vy = 0;
         
-        if (leftPressed) player.vx = -player.speed;
-        if (rightPressed) player.vx = player.speed;
-        if (upPressed) player.vy = -player.speed;
-        if (downPressed) player.vy = player.speed;
+        if ((input & LEFT) != 0) player.vx = -player.speed;
+        if ((input & RIGHT) != 0) player.vx = player.speed;
+        if ((input & UP) != 0) player.vy = -player.speed;
+        if ((input & DOWN) != 0) player.vy = player.speed;
         
-        if (spacePressed) {
+        if ((input & FIRE) != 0) {
             shootLaser();
         }
         
-        player.move();
+        player.move(step, sub);
+        if (prof != null) mark = prof.lap(PhaseProfiler.INPUT, mark);
         
-        if (tick % 400 == 0 && ufos.size() < 2) {
-            UFO ufo = new UFO(rnd.nextDouble() * 800, rnd.nextDouble() * 200 + 50);
-            ufos.add(ufo);
+        if (every(400) && store.live[EntityStore.UFO] < 2) {
+            store.addUfo(rnd.nextDouble() * 800, rnd.nextDouble() * 200 + 50);
         }
         
-        if (ufos.size() > 0 && rnd.nextInt(100) == 0) {
-            UFO ufo = (UFO) ufos.get(rnd.nextInt(ufos.size()));
-            lasers.add(new Laser(ufo.x + ufo.w/2, ufo.y + ufo.h, 0, 4, false));
+        if (store.live[EntityStore.UFO] > 0 && rnd.nextInt(400 / sub) == 0) {
+            int u = store.nth(EntityStore.UFO, rnd.nextInt(store.live[EntityStore.UFO]));
+            store.addLaser(store.x[u] + store.w[u]/2, store.y[u] + store.h[u], 0, 4, false);
         }
         
-        if (tick % 600 == 0 && powerups.size() < 1) {
+        if (every(600) && store.live[EntityStore.POWERUP] < 1) {
             int type = rnd.nextInt(3);
-            powerups.add(new PowerUp(rnd.nextDouble() * 760, -20, type));
+            store.addPowerUp(rnd.nextDouble() * 760, -20, type);
         }
+        if (prof != null) mark = prof.lap(PhaseProfiler.SPAWN, mark);
         
-        for (int i = 0; i < asteroids.size(); i++) {
-            SpaceObject a = asteroids.get(i);
-            a.move();
-        }
-        
-        for (int i = 0; i < ufos.size(); i++) {
-            SpaceObject u = ufos.get(i);
-            u.move();
-        }
+        store.moveAll();
+        if (prof != null) mark = prof.lap(PhaseProfiler.MOVE, mark);
         
-        for (int i = 0; i < lasers.size(); i++) {
-            Laser l = lasers.get(i);
-            l.move();
-            if (!l.alive || l.x < -20 || l.x > 820 || l.y < -20 || l.y > 620) {
-                lasers.remove(i);
-                i--;
+        grid.clear();
+        for (int t = 0; t < EntityStore.TYPES; t++) {
+            for (int i = store.base[t]; i < store.end(t); i++) {
+                if (!store.isAlive(i)) continue;
+                if (t == EntityStore.LASER && store.kind[i] == 1) continue;
+                grid.insert(i, store.x[i], store.y[i], store.w[i], store.h[i]);
             }
         }
+        if (prof != null) mark = prof.lap(PhaseProfiler.GRID, mark);
         
-        for (int i = 0; i < powerups.size(); i++) {
-            PowerUp p = powerups.get(i);
-            p.move();
-            if (!p.alive) {
-                powerups.remove(i);
-                i--;
+        GameEvents.Collisions laserPass = GameEvents.Collisions.start();
+        pairsTested = pairHits = 0;
+        for (int i = store.base[EntityStore.LASER]; i < store.end(EntityStore.LASER); i++) {
+            if (!store.isAlive(i) || store.kind[i] == 0) continue;
+            
+            // asteroids take the shot before ufos, same as the old separate passes
+            int target = -1;
+            int n = grid.query(store.x[i], store.y[i], store.w[i], store.h[i]);
+            pairsTested += n;
+            for (int k = 0; k < n; k++) {
+                int id = grid.hits[k];
+                if (!store.isAlive(id) || !store.overlaps(i, id)) continue;
+                int type = store.typeOf(id);
+                if (type == EntityStore.ASTEROID) { target = id; break; }
+                if (target == -1 && type == EntityStore.UFO) target = id;
             }
-        }
-        
-        for (int i = 0; i < lasers.size(); i++) {
-            Laser l = lasers.get(i);
-            if (!l.isPlayerLaser) continue;
+            if (target == -1) continue;
             
-            for (int j = 0; j < asteroids.size(); j++) {
-                Asteroid a = (Asteroid) asteroids.get(j);
+            pairHits++;
+            store.kill(i);
+            double tx = store.x[target], ty = store.y[target];
+            float cx = (float) (tx + store.w[target] / 2), cy = (float) (ty + store.h[target] / 2);
+            store.kill(target);
+            
+            if (store.typeOf(target) == EntityStore.ASTEROID) {
+                int size = store.kind[target];
+                explosions.add((int)tx, (int)ty, 10);
+                particles.burst(cx, cy, 24 - size * 6, 1.5f, 0x969696, Particles.DEBRIS, 160);
+                particles.burst(cx, cy, 16, 4f, 0xffc800, Particles.SPARK, 80);
+                score += size == 0 ? 100 : size == 1 ? 200 : 300;
                 
-                if (l.collidesWith(a)) {
-                    explosions.add(new int[]{(int)a.x, (int)a.y, 10});
-                    
-                    lasers.remove(i);
-                    asteroids.remove(j);
-                    
-                    score += a.size == 0 ? 100 : a.size == 1 ? 200 : 300;
-                    
-                    if (a.size < 2) {
-                        for (int k = 0; k < 2; k++) {
-                            double newVx = (rnd.nextDouble() - 0.5) * 3;
-                            double newVy = (rnd.nextDouble() - 0.5) * 3;
-                            asteroids.add(new Asteroid(a.x, a.y, a.size + 1, newVx, newVy));
-                        }
+                if (size < 2) {
+                    for (int k = 0; k < 2; k++) {
+                        double newVx = (rnd.nextDouble() - 0.5) * 3;
+                        double newVy = (rnd.nextDouble() - 0.5) * 3;
+                        int c = store.addAsteroid(tx, ty, size + 1, newVx, newVy, rnd);
+                        grid.insert(c, store.x[c], store.y[c], store.w[c], store.h[c]);
                     }
-                    
-                    i--;
-                    break;
                 }
+            } else {
+                explosions.add((int)tx, (int)ty, 15);
+                particles.burst(cx, cy, 48, 5f, 0xffff40, Particles.SPARK, 100);
+                particles.burst(cx, cy, 12, 2f, 0xff0000, Particles.DEBRIS, 200);
+                score += 500;
             }
         }
+        if (laserPass != null) laserPass.finish("lasers", pairsTested, pairHits);
+        if (prof != null) mark = prof.lap(PhaseProfiler.LASERS, mark);
         
-        for (int i = 0; i < lasers.size(); i++) {
-            Laser l = lasers.get(i);
-            if (!l.isPlayerLaser) continue;
-            
-            for (int j = 0; j < ufos.size(); j++) {
-                UFO u = (UFO) ufos.get(j);
-                
-                if (l.collidesWith(u)) {
-                    explosions.add(new int[]{(int)u.x, (int)u.y, 15});
-                    lasers.remove(i);
-                    ufos.remove(j);
-                    score += 500;
-                    i--;
-                    break;
-                }
-            }
+        GameEvents.Collisions playerPass = GameEvents.Collisions.start();
+        boolean ended = collidePlayer();
+        if (playerPass != null) playerPass.finish("player", pairsTested, pairHits);
+        if (ended) return;
+        if (prof != null) mark = prof.lap(PhaseProfiler.PLAYER, mark);
+        
+        explosions.decay(sub);
+        particles.update((float) step, sub);
+        if (prof != null) mark = prof.lap(PhaseProfiler.DECAY, mark);
+        
+        if (store.live[EntityStore.ASTEROID] < 4 && every(200)) {
+            double x = rnd.nextDouble() * 800;
+            double y = rnd.nextDouble() * 600;
+            double vx = (rnd.nextDouble() - 0.5) * 1.5;
+            double vy = (rnd.nextDouble() - 0.5) * 1.5;
+            store.addAsteroid(x, y, rnd.nextInt(3), vx, vy, rnd);
         }
         
-        for (int i = 0; i < asteroids.size(); i++) {
-            Asteroid a = (Asteroid) asteroids.get(i);
-            if (player.collidesWith(a) && player.blinkTimer == 0) {
-                player.hit();
-                explosions.add(new int[]{(int)player.x, (int)player.y, 8});
-                if (player.health <= 0) {
-                    gameOver();
-                    return;
-                }
-            }
+        if (every(20)) {
+            score++;
         }
         
-        for (int i = 0; i < ufos.size(); i++) {
-            UFO u = (UFO) ufos.get(i);
-            if (player.collidesWith(u) && player.blinkTimer == 0) {
+        store.compact();
+        if (prof != null) {
+            mark = prof.lap(PhaseProfiler.UPKEEP, mark);
+            prof.record(PhaseProfiler.TICK, mark - t0);
+        }
+    }
+
+    // the player against rocks and ufos, then enemy lasers, then power-ups; true if it ended the game
+    private boolean collidePlayer() {
+        int n = grid.query(player.x, player.y, player.w, player.h);
+        pairsTested = n;
+        pairHits = 0;
+        for (int k = 0; k < n; k++) {
+            int id = grid.hits[k];
+            int type = store.typeOf(id);
+            if (type != EntityStore.ASTEROID && type != EntityStore.UFO) continue;
+            if (store.isAlive(id) && store.overlaps(id, player) && player.blinkTimer == 0) {
+                pairHits++;
                 player.hit();
-                explosions.add(new int[]{(int)player.x, (int)player.y, 8});
+                explosions.add((int)player.x, (int)player.y, 8);
                 if (player.health <= 0) {
                     gameOver();
-                    return;
+                    return true;
                 }
             }
         }
         
-        for (int i = 0; i < lasers.size(); i++) {
-            Laser l = lasers.get(i);
-            if (l.isPlayerLaser) continue;
-            
-            if (player.collidesWith(l) && player.blinkTimer == 0) {
+        for (int k = 0; k < n; k++) {
+            int id = grid.hits[k];
+            if (store.typeOf(id) != EntityStore.LASER) continue;
+            if (store.isAlive(id) && store.overlaps(id, player) && player.blinkTimer == 0) {
+                pairHits++;
                 player.hit();
-                lasers.remove(i);
-                explosions.add(new int[]{(int)player.x, (int)player.y, 8});
-                i--;
+                store.kill(id);
+                explosions.add((int)player.x, (int)player.y, 8);
                 if (player.health <= 0) {
                     gameOver();
-                    return;
+                    return true;
                 }
             }
         }
         
-        for (int i = 0; i < powerups.size(); i++) {
-            PowerUp p = powerups.get(i);
-            if (player.collidesWith(p)) {
-                if (p.type == 0) {
-                    player.blinkTimer = 180;
-                } else if (p.type == 1) {
+        for (int k = 0; k < n; k++) {
+            int id = grid.hits[k];
+            if (store.typeOf(id) != EntityStore.POWERUP) continue;
+            if (store.isAlive(id) && store.overlaps(id, player)) {
+                pairHits++;
+                if (store.kind[id] == 0) {
+                    player.blinkTimer = 720;
+                } else if (store.kind[id] == 1) {
                     score += 300;
                 } else {
                     score += 500;
                 }
-                powerups.remove(i);
-                i--;
+                store.kill(id);
             }
         }
-        
-        for (int i = 0; i < explosions.size(); i++) {
-            explosions.set(i, new int[]{explosions.get(i)[0], explosions.get(i)[1], explosions.get(i)[2] - 1});
-            if (explosions.get(i)[2] <= 0) {
-                explosions.remove(i);
-                i--;
-            }
+        return false;
+    }
+
+    // true once every n ticks of the original 60 Hz game, whatever rate this one runs at
+    boolean every(int n) {
+        return time % (n * 4) == 0;
+    }
+    
+    void logTickTime(long nanos) {
+        tickNanos += nanos;
+        if (tick % 300 == 0) {
+            System.out.printf("tick avg %.3f ms, %d asteroids, %s%n", tickNanos / 300 / 1e6,
+                    store.live[EntityStore.ASTEROID], naiveCollisions ? "naive" : "grid");
+            tickNanos = 0;
         }
-        
-        if (asteroids.size() < 4 && tick % 200 == 0) {
-            double x = rnd.nextDouble() * 800;
-            double y = rnd.nextDouble() * 600;
-            double vx = (rnd.nextDouble() - 0.5) * 1.5;
-            double vy = (rnd.nextDouble() - 0.5) * 1.5;
-            asteroids.add(new Asteroid(x, y, rnd.nextInt(3), vx, vy));
+    }
+
+    void gameOver() {
+        over = true;
+        GameEvents.GameOver event = new GameEvents.GameOver();
+        if (event.shouldCommit()) {
+            event.score = score;
+            event.tick = tick;
+            event.seed = seed;
+            event.map = mapIndex;
+            event.ship = shipChoice;
+            event.commit();
+        }
+        if (onGameOver != null) onGameOver.run();
+    }
+
+    // folds everything the rules depend on into one number, so two runs can be compared bit for bit
+    long stateHash() {
+        long h = 0xcbf29ce484222325L;
+        h = mix(h, tick); h = mix(h, score); h = mix(h, player.health); h = mix(h, player.blinkTimer);
+        h = mix(h, Double.doubleToLongBits(player.x)); h = mix(h, Double.doubleToLongBits(player.y));
+        for (int t = 0; t < EntityStore.TYPES; t++) {
+            h = mix(h, store.live[t]);
+            for (int i = store.base[t]; i < store.end(t); i++) {
+                if (!store.isAlive(i)) continue;
+                h = mix(h, Double.doubleToLongBits(store.x[i])); h = mix(h, Double.doubleToLongBits(store.y[i]));
+                h = mix(h, Double.doubleToLongBits(store.vx[i])); h = mix(h, Double.doubleToLongBits(store.vy[i]));
+                h = mix(h, store.kind[i]); h = mix(h, store.timer[i]);
+            }
+        }
+        for (int i = 0; i < explosions.count; i++) h = mix(h, explosions.r[i]);
+        return h;
+    }
+
+    static long mix(long h, long v) {
+        return (h ^ v) * 0x100000001b3L;
+    }
+
+    // scripted input for the headless modes: sweep left and right with the trigger held
+    static int sweep(int i) {
+        return FIRE | ((i / 120) % 2 == 0 ? LEFT : RIGHT);
+    }
+
+    // runs ticks back to back with an unkillable ship sweeping and firing, then reports throughput
+    static void runHeadless(int ticks, int map, int ship) {
+        GameSimulation sim = new GameSimulation();
+        sim.setup(map, ship);
+        sim.player.health = Integer.MAX_VALUE;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ticks; i++) {
+            sim.updateGame(sweep(i));
+        }
+        double secs = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("%d ticks in %.3f s = %.0f ticks/sec (score %d, %d asteroids)%n",
+                ticks, secs, ticks / secs, sim.score, sim.store.live[EntityStore.ASTEROID]);
+    }
+
+    // same seeded run serially and on pools of 1..cores threads; every hash must match the serial one
+    static void runScaling(int asteroids, int ticks) {
+        stressAsteroids = asteroids;
+        int cores = Runtime.getRuntime().availableProcessors();
+        long serialHash = 0;
+        for (int threads = 0; threads <= cores; threads++) {
+            ForkJoinPool pool = threads == 0 ? null : new ForkJoinPool(threads);
+            GameSimulation sim = new GameSimulation();
+            sim.store.pool = pool;
+            sim.setup(2, 1, 1L);
+            for (int i = 0; i < 200; i++) sim.updateGame(sweep(i));
+            long t0 = System.nanoTime();
+            for (int i = 200; i < ticks + 200; i++) sim.updateGame(sweep(i));
+            double secs = (System.nanoTime() - t0) / 1e9;
+            long hash = sim.stateHash();
+            if (threads == 0) serialHash = hash;
+            System.out.printf("%-10s %8.0f ticks/sec  %6.2f ms/tick  %s%n", threads == 0 ? "serial" : threads + " threads",
+                    ticks / secs, secs * 1000 / ticks, hash == serialHash ? "hash ok" : "HASH MISMATCH");
+            if (pool != null) pool.shutdown();
+        }
+    }
+}
+
+
+// the HUD as a handful of blits: both panels with their labels, and the controls line, are baked once (the
+// right panel again when the map or ship changes), and each number is composed from a pre-rasterised digit
+// atlas into its own image, which is only redone when the value changes. a frame allocates nothing
+class HudRenderer {
+    static final Color FRAME = new Color(0, 255, 255, 150);
+    static final String CONTROLS = "CONTROLS: ARROWS=MOVE, SPACE=SHOOT, ESC=MENU";
+    static final int PAD = 2;       // glyphs may overhang their advance a little
+    static final int DIGITS = 11;   // room for any int, sign included
+
+    RenderingHints hints;
+    Font font;
+    int ascent, height, advance;
+    int[] atlas;                    // '0'..'9' then '-', each cell advance + 2 * PAD wide
+    int cellW;
+    BufferedImage leftPanel, rightPanel, controls;
+    int rightMap = -1, rightShip = -1;
+    int scoreX, healthX, asteroidsX;
+    final Number score = new Number(), health = new Number(), asteroids = new Number();
+    static final int LAYERS = 6;
+    final BufferedImage[] layers = new BufferedImage[LAYERS];
+    final int[] layerX = new int[LAYERS], layerY = new int[LAYERS];
+
+    // one number's pixels; the image is rebuilt from the atlas only when the value changes
+    class Number {
+        BufferedImage img;
+        int[] px;
+        int value;
+        boolean valid = false;
+
+        void set(int v) {
+            if (valid && v == value) return;
+            if (img == null) {
+                img = new BufferedImage(DIGITS * advance + 2 * PAD, height, BufferedImage.TYPE_INT_ARGB_PRE);
+                px = ((java.awt.image.DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            }
+            value = v;
+            valid = true;
+            Arrays.fill(px, 0);
+            int w = img.getWidth(), n = 0;
+            long m = Math.abs((long) v);
+            do { n++; m /= 10; } while (m > 0);
+            if (v < 0) n++;
+            m = Math.abs((long) v);
+            for (int i = n - 1; i >= 0; i--) {
+                int glyph = (i == 0 && v < 0) ? 10 : (int) (m % 10);
+                m /= 10;
+                // glyph cells overlap by their padding, so only set pixels are copied
+                int x0 = i * advance;
+                for (int y = 0; y < height; y++) {
+                    int src = y * 11 * cellW + glyph * cellW, dst = y * w + x0;
+                    for (int x = 0; x < cellW; x++) {
+                        int c = atlas[src + x];
+                        if (c != 0) px[dst + x] = c;
+                    }
+                }
+            }
+        }
+    }
+
+    void prepare(Graphics2D g, Font f) {
+        if (font == f) return;
+        font = f;
+        hints = (RenderingHints) g.getRenderingHints().clone();
+        FontMetrics fm = g.getFontMetrics(f);
+        ascent = fm.getAscent();
+        height = fm.getAscent() + fm.getDescent();
+        advance = fm.charWidth('0');
+        cellW = advance + 2 * PAD;
+        BufferedImage a = new BufferedImage(11 * cellW, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D ag = begin(a);
+        for (int i = 0; i < 11; i++) ag.drawString(i < 10 ? String.valueOf(i) : "-", i * cellW + PAD, ascent);
+        ag.dispose();
+        atlas = ((java.awt.image.DataBufferInt) a.getRaster().getDataBuffer()).getData();
+        score.valid = health.valid = asteroids.valid = false;
+
+        scoreX = 20 + fm.stringWidth("SCORE: ");
+        healthX = 20 + fm.stringWidth("HEALTH: ");
+        asteroidsX = 120 + fm.stringWidth("ASTEROIDS: ");
+        leftPanel = new BufferedImage(200, 70, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D pg = begin(leftPanel);
+        pg.translate(-5, -5);
+        frame(pg, 5);
+        pg.setColor(Color.WHITE);
+        pg.drawString("SCORE: ", 20, 30);
+        pg.drawString("HEALTH: ", 20, 50);
+        pg.drawString("ASTEROIDS: ", 120, 30);
+        pg.dispose();
+
+        controls = new BufferedImage(fm.stringWidth(CONTROLS) + 2 * PAD, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D cg = begin(controls);
+        cg.setColor(Color.GRAY);
+        cg.drawString(CONTROLS, PAD, ascent);
+        cg.dispose();
+        rightMap = -1;
+    }
+
+    Graphics2D begin(BufferedImage img) {
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHints(hints);
+        g.setFont(font);
+        g.setColor(Color.WHITE);
+        return g;
+    }
+
+    static void frame(Graphics2D g, int x) {
+        g.setColor(FRAME);
+        g.fillRect(x, 5, 200, 70);
+        g.setColor(Color.BLACK);
+        g.fillRect(x + 5, 10, 190, 60);
+    }
+
+    void draw(Graphics2D g, Font f, int scoreValue, int healthValue, int asteroidCount, int map, int ship) {
+        update(g, f, scoreValue, healthValue, asteroidCount, map, ship);
+        for (int i = 0; i < LAYERS; i++) g.drawImage(layers[i], layerX[i], layerY[i], null);
+    }
+
+    // brings every image up to date and lays them out in layers, back to front
+    void update(Graphics2D g, Font f, int scoreValue, int healthValue, int asteroidCount, int map, int ship) {
+        prepare(g, f);
+        if (map != rightMap || ship != rightShip) {
+            rightPanel = new BufferedImage(200, 70, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D pg = begin(rightPanel);
+            pg.translate(-595, -5);
+            frame(pg, 595);
+            pg.setColor(Color.WHITE);
+            pg.drawString("MAP: " + (map == 0 ? "DEEP SPACE" : map == 1 ? "NEBULA" : "BELT"), 610, 30);
+            pg.drawString("SHIP: " + (ship == 0 ? "FIGHTER" : ship == 1 ? "INTERCEPTOR" : "BOMBER"), 610, 50);
+            pg.dispose();
+            rightMap = map;
+            rightShip = ship;
+        }
+        score.set(scoreValue);
+        health.set(healthValue);
+        asteroids.set(asteroidCount);
+
+        layer(0, leftPanel, 5, 5);
+        layer(1, score.img, scoreX - PAD, 30 - ascent);
+        layer(2, health.img, healthX - PAD, 50 - ascent);
+        layer(3, asteroids.img, asteroidsX - PAD, 30 - ascent);
+        layer(4, rightPanel, 595, 5);
+        layer(5, controls, 10 - PAD, 585 - ascent);
+    }
+
+    void layer(int i, BufferedImage img, int x, int y) {
+        layers[i] = img;
+        layerX[i] = x;
+        layerY[i] = y;
+    }
+}
+
+// the software backend: the whole frame is rasterised in plain Java into the int[] of one TYPE_INT_RGB image,
+// which then goes to the screen in a single drawImage. it paints what the Java2D backend paints, in the same
+// order, with the same sprites and with Java2D's own line stepping and alpha arithmetic, so both agree pixel for
+// pixel. the rows are cut into bands that render on the fork/join pool; a band walks every primitive and only
+// writes its own rows, so bands never touch the same pixel
+class PixelRenderer {
+    static final int W = 800, H = 600;
+    static final int SCANLINE_ALPHA = 30;
+    static final Color ROCK = RenderQueue.COLORS[RenderQueue.ROCK];
+    // round(a * b / 255) computed exactly the way the native loops fill their mul8table
+    static final int[] MUL8 = new int[256 * 256];
+    static {
+        for (int a = 1; a < 256; a++) {
+            int inc = (a << 16) + (a << 8) + a, val = inc + (1 << 23);
+            for (int b = 1; b < 256; b++) {
+                MUL8[a * 256 + b] = val >>> 24;
+                val += inc;
+            }
+        }
+    }
+
+    final BufferedImage frame = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+    final int[] px = pixels(frame);
+    final SpriteCache sprites = new SpriteCache();
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    static int minBand = 32;
+
+    // what the bands draw, set before they are forked
+    RenderFrame f;
+    double alpha;
+    int[] bg;
+    HudRenderer hud;
+
+    static int[] pixels(BufferedImage img) {
+        return ((java.awt.image.DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    BufferedImage render(Graphics2D g, Font componentFont, Font retro, RenderFrame f, double alpha,
+                         BufferedImage bgLayer, HudRenderer hud) {
+        this.f = f;
+        this.alpha = alpha;
+        this.bg = pixels(bgLayer);
+        this.hud = hud;
+        // everything lazily built is built here, on this thread, so the bands only ever read
+        sprites.prepareRaster(g, componentFont);
+        EntityStore store = f.store;
+        for (int i = store.base[EntityStore.UFO]; i < store.end(EntityStore.UFO); i++) {
+            if (store.isAlive(i)) sprites.ufo();
+        }
+        for (int i = store.base[EntityStore.LASER]; i < store.end(EntityStore.LASER); i++) {
+            if (store.isAlive(i)) sprites.laser(store, i);
+        }
+        for (int i = store.base[EntityStore.POWERUP]; i < store.end(EntityStore.POWERUP); i++) {
+            if (store.isAlive(i)) sprites.powerUp(store, i);
+        }
+        sprites.ship(f.player.shipType);
+        Explosions explosions = f.explosions;
+        for (int i = 0; i < explosions.count; i++) {
+            int er = explosions.r[i] >> 2;
+            if (er <= 0) continue;
+            sprites.blast(0, er * 2);
+            sprites.blast(1, er);
+        }
+        hud.update(g, retro, f.score, f.player.health, store.live[EntityStore.ASTEROID], f.mapIndex, f.shipChoice);
+
+        int bands = pool == null ? 1 : Math.min(pool.getParallelism() * 2, H / minBand);
+        if (bands <= 1) draw(0, H);
+        else pool.invoke(new Band(0, H, (H + bands - 1) / bands));
+        return frame;
+    }
+
+    class Band extends RecursiveAction {
+        final int y0, y1, grain;
+
+        Band(int y0, int y1, int grain) {
+            this.y0 = y0; this.y1 = y1; this.grain = grain;
+        }
+
+        protected void compute() {
+            if (y1 - y0 <= grain) {
+                draw(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new Band(y0, mid, grain), new Band(mid, y1, grain));
+        }
+    }
+
+    // rows y0 (inclusive) to y1, in the Java2D backend's painting order
+    void draw(int y0, int y1) {
+        System.arraycopy(bg, y0 * W, px, y0 * W, (y1 - y0) * W);
+
+        EntityStore store = f.store;
+        int rock = ROCK.getRGB() & 0xffffff;
+        for (int i = store.base[EntityStore.ASTEROID]; i < store.end(EntityStore.ASTEROID); i++) {
+            if (!store.isAlive(i)) continue;
+            int cx = (int)store.drawX(i, alpha) + store.w[i]/2, cy = (int)store.drawY(i, alpha) + store.h[i]/2;
+            // the outline stays within half the width plus one, the specks within three more
+            int reach = store.w[i]/2 + 4;
+            if (cy + reach < y0 || cy - reach >= y1) continue;
+            int[] s = store.shape;
+            int o = i * EntityStore.SHAPE;
+            for (int k = 0; k < 8; k++) {
+                int next = (k + 1) % 8;
+                line(cx + s[o + k*2], cy + s[o + k*2 + 1], cx + s[o + next*2], cy + s[o + next*2 + 1], rock, y0, y1);
+            }
+            fill(cx - 2, cy - 2, 4, 4, rock, y0, y1);
+            fill(cx + s[o + 4]/2, cy + s[o + 5]/2, 3, 3, rock, y0, y1);
+            fill(cx + s[o + 10]/2, cy + s[o + 11]/2, 3, 3, rock, y0, y1);
+        }
+        for (int i = store.base[EntityStore.UFO]; i < store.end(EntityStore.UFO); i++) {
+            if (store.isAlive(i)) blit(sprites.ufo(), (int)store.drawX(i, alpha), (int)store.drawY(i, alpha), y0, y1);
+        }
+        for (int i = store.base[EntityStore.LASER]; i < store.end(EntityStore.LASER); i++) {
+            if (store.isAlive(i)) blit(sprites.laser(store, i), (int)store.drawX(i, alpha) - 1, (int)store.drawY(i, alpha), y0, y1);
+        }
+        for (int i = store.base[EntityStore.POWERUP]; i < store.end(EntityStore.POWERUP); i++) {
+            if (store.isAlive(i)) blit(sprites.powerUp(store, i), (int)store.drawX(i, alpha), (int)store.drawY(i, alpha), y0, y1);
+        }
+        PlayerShip player = f.player;
+        if (player.visible()) blit(sprites.ship(player.shipType), (int)SpaceObject.lerp(player.px, player.x, alpha),
+                (int)SpaceObject.lerp(player.py, player.y, alpha), y0, y1);
+
+        Explosions explosions = f.explosions;
+        for (int i = 0; i < explosions.count; i++) {
+            int ex = explosions.x[i], ey = explosions.y[i], er = explosions.r[i] >> 2;
+            if (er <= 0) continue;
+            blit(sprites.blast(0, er * 2), ex - er, ey - er, y0, y1);
+            blit(sprites.blast(1, er), ex - er/2, ey - er/2, y0, y1);
+        }
+        f.particles.draw(px, W, H, alpha, 0, y0, y1, null);
+
+        for (int i = 0; i < HudRenderer.LAYERS; i++) blit(hud.layers[i], hud.layerX[i], hud.layerY[i], y0, y1);
+
+        // every third row under translucent black, as the overlay image does it
+        int keep = (255 - SCANLINE_ALPHA) * 256;
+        for (int y = (y0 + 2) / 3 * 3; y < y1; y += 3) {
+            for (int p = y * W, end = p + W; p < end; p++) {
+                int c = px[p];
+                px[p] = MUL8[keep + (c >> 16 & 255)] << 16 | MUL8[keep + (c >> 8 & 255)] << 8 | MUL8[keep + (c & 255)];
+            }
+        }
+    }
+
+    // Java2D's bresenham: no endpoint swapping, ties step the minor axis, both endpoints drawn
+    void line(int x1, int y1, int x2, int y2, int rgb, int y0, int yEnd) {
+        if (Math.max(y1, y2) < y0 || Math.min(y1, y2) >= yEnd) return;
+        int dx = x2 - x1, dy = y2 - y1, ax = Math.abs(dx), ay = Math.abs(dy);
+        int sx = dx < 0 ? -1 : 1, sy = dy < 0 ? -1 : 1;
+        boolean xMajor = ax >= ay;
+        int errMajor = xMajor ? ay * 2 : ax * 2, errMinor = xMajor ? ax * 2 : ay * 2;
+        int steps = xMajor ? ax : ay, error = -(errMinor / 2);
+        int x = x1, y = y1;
+        do {
+            if (y >= y0 && y < yEnd && x >= 0 && x < W) px[y * W + x] = rgb;
+            if (xMajor) {
+                x += sx;
+                error += errMajor;
+                if (error >= 0) { y += sy; error -= errMinor; }
+            } else {
+                y += sy;
+                error += errMajor;
+                if (error >= 0) { x += sx; error -= errMinor; }
+            }
+        } while (--steps >= 0);
+    }
+
+    void fill(int x, int y, int w, int h, int rgb, int y0, int y1) {
+        int top = Math.max(y, y0), bottom = Math.min(y + h, y1);
+        int left = Math.max(x, 0), right = Math.min(x + w, W);
+        for (int row = top; row < bottom; row++) {
+            if (left < right) Arrays.fill(px, row * W + left, row * W + right, rgb);
+        }
+    }
+
+    // source-over of a premultiplied sprite
+    void blit(BufferedImage img, int x, int y, int y0, int y1) {
+        int w = img.getWidth(), h = img.getHeight();
+        int top = Math.max(y, y0), bottom = Math.min(y + h, y1);
+        int left = Math.max(x, 0), right = Math.min(x + w, W);
+        if (top >= bottom || left >= right) return;
+        int[] src = pixels(img);
+        for (int row = top; row < bottom; row++) {
+            int s = (row - y) * w + (left - x), d = row * W + left;
+            for (int col = left; col < right; col++, s++, d++) {
+                int c = src[s], a = c >>> 24;
+                if (a == 0) continue;
+                if (a == 255) {
+                    px[d] = c & 0xffffff;
+                    continue;
+                }
+                int keep = (255 - a) * 256, dst = px[d];
+                px[d] = ((c >> 16 & 255) + MUL8[keep + (dst >> 16 & 255)]) << 16
+                        | ((c >> 8 & 255) + MUL8[keep + (dst >> 8 & 255)]) << 8
+                        | ((c & 255) + MUL8[keep + (dst & 255)]);
+            }
+        }
+    }
+}
+
+// every entity image is rasterised once and blitted after that; asteroid outlines are all different, so
+// those are keyed by the asteroid's uid and swept out of the cache once the rock stops being drawn
+class SpriteCache {
+    static final int[] PULSE_SIZE = new int[60];
+    static {
+        for (int p = 0; p < 60; p++) PULSE_SIZE[p] = 16 + (int)(4 * Math.sin(p * 0.1));
+    }
+
+    GraphicsConfiguration gc;
+    RenderingHints hints;
+    Font font;
+    boolean rockSprites;
+    BufferedImage[] ships = new BufferedImage[3];
+    BufferedImage ufo;
+    BufferedImage[] lasers = new BufferedImage[3];       // enemy, player, player with glow
+    BufferedImage[][] powerups = new BufferedImage[3][21];  // type, pulse size
+    BufferedImage[][] blasts = new BufferedImage[2][32];     // outer and inner explosion disc, by diameter
+
+    // open-addressed uid -> asteroid sprite map, with the frame each entry was last drawn in
+    int[] keys = new int[256];
+    BufferedImage[] rocks = new BufferedImage[256];
+    int[] lastUsed = new int[256];
+    int rockCount = 0;
+    int frame = 0;
+    RenderQueue queue = new RenderQueue();   // software rocks, flushed before the blits
+    RenderQueue bake = new RenderQueue();    // sprites being rasterised
+
+    // plain premultiplied int images for the pixel renderer, rasterised with the hints of the screen surface
+    void prepareRaster(Graphics2D g, Font componentFont) {
+        if (hints != null) return;
+        hints = (RenderingHints) g.getRenderingHints().clone();
+        font = componentFont;
+    }
+
+    // sprites are rasterised with the hints and font of the first surface they are drawn to
+    void prepare(Graphics2D g, Font componentFont) {
+        if (gc != null) return;
+        gc = g.getDeviceConfiguration();
+        hints = (RenderingHints) g.getRenderingHints().clone();
+        font = componentFont;
+        // a software blit of a 60px rock costs more than its eleven thin primitives, so rocks only
+        // become sprites when the surface can keep them in video memory
+        rockSprites = gc.getImageCapabilities().isAccelerated();
+    }
+
+    BufferedImage newSprite(int w, int h) {
+        return gc != null ? gc.createCompatibleImage(w, h, Transparency.TRANSLUCENT)
+                          : new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    Graphics2D begin(BufferedImage img) {
+        Graphics2D g = img.createGraphics();
+        if (hints != null) g.setRenderingHints(hints);
+        if (font != null) g.setFont(font);
+        return g;
+    }
+
+    // alpha is how far the frame sits between the last two ticks; 1 draws the latest positions
+    void drawEntities(Graphics2D g, EntityStore store, double alpha) {
+        frame++;
+        for (int i = store.base[EntityStore.ASTEROID]; i < store.end(EntityStore.ASTEROID); i++) {
+            if (!store.isAlive(i)) continue;
+            int centerX = (int)store.drawX(i, alpha) + store.w[i]/2, centerY = (int)store.drawY(i, alpha) + store.h[i]/2;
+            if (!rockSprites) {
+                paintAsteroid(queue, store.shape, i * EntityStore.SHAPE, centerX, centerY);
+                continue;
+            }
+            BufferedImage img = rock(store, i);
+            int half = store.w[i]/2 + 1;
+            g.drawImage(img, centerX - half, centerY - half, null);
+        }
+        queue.flush(g);
+        for (int i = store.base[EntityStore.UFO]; i < store.end(EntityStore.UFO); i++) {
+            if (store.isAlive(i)) g.drawImage(ufo(), (int)store.drawX(i, alpha), (int)store.drawY(i, alpha), null);
+        }
+        for (int i = store.base[EntityStore.LASER]; i < store.end(EntityStore.LASER); i++) {
+            if (store.isAlive(i)) g.drawImage(laser(store, i), (int)store.drawX(i, alpha) - 1, (int)store.drawY(i, alpha), null);
+        }
+        for (int i = store.base[EntityStore.POWERUP]; i < store.end(EntityStore.POWERUP); i++) {
+            if (store.isAlive(i)) g.drawImage(powerUp(store, i), (int)store.drawX(i, alpha), (int)store.drawY(i, alpha), null);
+        }
+        if (rockCount > 2 * store.live[EntityStore.ASTEROID] + 64) evict();
+    }
+
+    void drawExplosions(Graphics2D g, Explosions explosions) {
+        for (int i = 0; i < explosions.count; i++) {
+            int ex = explosions.x[i], ey = explosions.y[i], er = explosions.r[i] >> 2;
+            if (er <= 0) continue;
+            g.drawImage(blast(0, er * 2), ex - er, ey - er, null);
+            g.drawImage(blast(1, er), ex - er/2, ey - er/2, null);
+        }
+    }
+
+    void drawShip(Graphics2D g, PlayerShip player, double alpha) {
+        g.drawImage(ship(player.shipType), (int)SpaceObject.lerp(player.px, player.x, alpha),
+                (int)SpaceObject.lerp(player.py, player.y, alpha), null);
+    }
+
+    BufferedImage ufo() {
+        if (ufo == null) {
+            ufo = newSprite(24, 16);
+            Graphics2D sg = begin(ufo);
+            paintUfo(bake, 0, 0);
+            bake.flush(sg);
+            sg.dispose();
+        }
+        return ufo;
+    }
+
+    // drawn one pixel left of the laser, to leave room for the glow
+    BufferedImage laser(EntityStore store, int id) {
+        int v = store.kind[id] == 0 ? 0 : (store.timer[id] >> 2) % 4 < 2 ? 2 : 1;
+        if (lasers[v] == null) {
+            lasers[v] = newSprite(store.w[id] + 2, store.h[id]);
+            Graphics2D sg = begin(lasers[v]);
+            paintLaser(bake, 1, 0, store.w[id], store.h[id], v > 0, v == 2);
+            bake.flush(sg);
+            sg.dispose();
+        }
+        return lasers[v];
+    }
+
+    BufferedImage powerUp(EntityStore store, int id) {
+        int type = store.kind[id], size = PULSE_SIZE[store.timer[id] >> 2];
+        if (powerups[type][size] == null) {
+            powerups[type][size] = newSprite(21, 21);
+            Graphics2D sg = begin(powerups[type][size]);
+            paintPowerUp(bake, 0, 0, type, size);
+            bake.flush(sg);
+            sg.dispose();
+        }
+        return powerups[type][size];
+    }
+
+    // a filled circle of diameter d, one pixel of margin for hints that soften its edge
+    BufferedImage blast(int inner, int d) {
+        if (d >= blasts[inner].length) blasts[inner] = Arrays.copyOf(blasts[inner], d * 2);
+        if (blasts[inner][d] == null) {
+            blasts[inner][d] = newSprite(d + 1, d + 1);
+            Graphics2D sg = begin(blasts[inner][d]);
+            sg.setColor(inner == 0 ? Color.ORANGE : Color.YELLOW);
+            sg.fillOval(0, 0, d, d);
+            sg.dispose();
+        }
+        return blasts[inner][d];
+    }
+
+    BufferedImage ship(int type) {
+        if (ships[type] == null) {
+            ships[type] = newSprite(31, 33);
+            Graphics2D sg = begin(ships[type]);
+            new PlayerShip(0, 0, type).drawHull(bake, 0, 0);
+            bake.flush(sg);
+            sg.dispose();
+        }
+        return ships[type];
+    }
+
+    BufferedImage rock(EntityStore store, int id) {
+        int key = store.uid[id];
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                lastUsed[slot] = frame;
+                return rocks[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        // outline offsets never exceed half the width, so the rock fits a box one pixel wider than that
+        int half = store.w[id]/2 + 1;
+        BufferedImage img = newSprite(2 * half + 1, 2 * half + 1);
+        Graphics2D sg = begin(img);
+        paintAsteroid(bake, store.shape, id * EntityStore.SHAPE, half, half);
+        bake.flush(sg);
+        sg.dispose();
+        put(key, img, frame);
+        return img;
+    }
+
+    void put(int key, BufferedImage img, int used) {
+        if ((rockCount + 1) * 2 > keys.length) rehash(keys.length * 2, false);
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0) slot = (slot + 1) & mask;
+        keys[slot] = key;
+        rocks[slot] = img;
+        lastUsed[slot] = used;
+        rockCount++;
+    }
+
+    // drops every rock sprite that was not drawn this frame, i.e. asteroids that have been destroyed
+    void evict() {
+        rehash(keys.length, true);
+    }
+
+    void rehash(int capacity, boolean dropStale) {
+        int[] oldKeys = keys, oldUsed = lastUsed;
+        BufferedImage[] oldRocks = rocks;
+        keys = new int[capacity];
+        rocks = new BufferedImage[capacity];
+        lastUsed = new int[capacity];
+        rockCount = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0 || (dropStale && oldUsed[i] != frame)) continue;
+            put(oldKeys[i], oldRocks[i], oldUsed[i]);
+        }
+    }
+
+    static int mix(int key) {
+        return key * 0x9E3779B9 >>> 7;
+    }
+
+    static void paintAsteroid(RenderQueue q, int[] s, int o, int centerX, int centerY) {
+        for (int i = 0; i < 8; i++) {
+            int next = (i + 1) % 8;
+            q.line(RenderQueue.ROCK, centerX + s[o + i*2], centerY + s[o + i*2 + 1],
+                      centerX + s[o + next*2], centerY + s[o + next*2 + 1]);
+        }
+        
+        q.rect(RenderQueue.ROCK, centerX-2, centerY-2, 4, 4);
+        q.rect(RenderQueue.ROCK, centerX+s[o + 4]/2, centerY+s[o + 5]/2, 3, 3);
+        q.rect(RenderQueue.ROCK, centerX+s[o + 10]/2, centerY+s[o + 11]/2, 3, 3);
+    }
+    
+    static void paintUfo(RenderQueue q, int drawX, int drawY) {
+        for (int i = 0; i < 3; i++) {
+            q.rect(RenderQueue.UFO, drawX + i*5, drawY, 4, 4);
+            q.rect(RenderQueue.UFO, drawX + i*5, drawY+4, 4, 4);
+        }
+        
+        q.rect(RenderQueue.UFO, drawX+5, drawY+8, 10, 6);
+        
+        q.rect(RenderQueue.UFO_LIGHTS, drawX+10, drawY+4, 3, 3);
+        q.rect(RenderQueue.UFO_LIGHTS, drawX+20, drawY+4, 3, 3);
+    }
+    
+    static void paintLaser(RenderQueue q, int drawX, int drawY, int w, int h, boolean playerLaser, boolean glow) {
+        if (playerLaser) {
+            q.rect(RenderQueue.LASER, drawX, drawY, w, h);
+            q.rect(RenderQueue.LASER_CORE, drawX+1, drawY+1, w-2, h-2);
+            if (glow) q.rect(RenderQueue.LASER_GLOW, drawX-1, drawY, w+2, h);
+        } else {
+            q.rect(RenderQueue.ENEMY_LASER, drawX, drawY, w, h);
+        }
+    }
+    
+    static void paintPowerUp(RenderQueue q, int drawX, int drawY, int type, int size) {
+        q.quad(RenderQueue.SHIELD + type, drawX+size/2, drawY, drawX+size, drawY+size/2,
+                drawX+size/2, drawY+size, drawX, drawY+size/2);
+        q.text(RenderQueue.LABEL, type == 0 ? "S" : type == 1 ? "F" : "P", drawX+7, drawY+13);
+    }
+}
+
+// one frame's primitives, bucketed by material and replayed in layer order, so the Graphics colour is set once
+// per material instead of once per entity
+class RenderQueue {
+    static final int ROCK = 0, UFO = 1, UFO_LIGHTS = 2, ENEMY_LASER = 3, LASER = 4, LASER_CORE = 5, LASER_GLOW = 6,
+            SHIELD = 7, RAPID_FIRE = 8, POINTS = 9, LABEL = 10, HULL = 11, COCKPIT = 12, ENGINE = 13;
+    static final Color[] COLORS = {
+        new Color(150, 150, 150), Color.RED, Color.GREEN, Color.RED, Color.CYAN, Color.WHITE,
+        new Color(0, 255, 255, 100), Color.CYAN, Color.MAGENTA, Color.YELLOW, Color.BLACK,
+        Color.GREEN, Color.CYAN, Color.ORANGE
+    };
+    static final int RECT = 0, LINE = 1, POLYGON = 2, TEXT = 3;
+
+    // per material: opcode followed by its operands; polygons store their vertex count, then x,y pairs
+    int[][] commands = new int[COLORS.length][64];
+    int[] size = new int[COLORS.length];
+    String[] text = new String[64];
+    int textCount = 0;
+    int[] xs = new int[4], ys = new int[4];
+
+    int[] reserve(int m, int n) {
+        if (size[m] + n > commands[m].length) commands[m] = Arrays.copyOf(commands[m], Math.max(size[m] + n, commands[m].length * 2));
+        return commands[m];
+    }
+
+    void rect(int m, int x, int y, int w, int h) {
+        int[] c = reserve(m, 5);
+        int i = size[m];
+        c[i] = RECT; c[i + 1] = x; c[i + 2] = y; c[i + 3] = w; c[i + 4] = h;
+        size[m] = i + 5;
+    }
+
+    void line(int m, int x0, int y0, int x1, int y1) {
+        int[] c = reserve(m, 5);
+        int i = size[m];
+        c[i] = LINE; c[i + 1] = x0; c[i + 2] = y0; c[i + 3] = x1; c[i + 4] = y1;
+        size[m] = i + 5;
+    }
+
+    void triangle(int m, int x0, int y0, int x1, int y1, int x2, int y2) {
+        int[] c = reserve(m, 8);
+        int i = size[m];
+        c[i] = POLYGON; c[i + 1] = 3;
+        c[i + 2] = x0; c[i + 3] = y0; c[i + 4] = x1; c[i + 5] = y1; c[i + 6] = x2; c[i + 7] = y2;
+        size[m] = i + 8;
+    }
+
+    void quad(int m, int x0, int y0, int x1, int y1, int x2, int y2, int x3, int y3) {
+        int[] c = reserve(m, 10);
+        int i = size[m];
+        c[i] = POLYGON; c[i + 1] = 4;
+        c[i + 2] = x0; c[i + 3] = y0; c[i + 4] = x1; c[i + 5] = y1;
+        c[i + 6] = x2; c[i + 7] = y2; c[i + 8] = x3; c[i + 9] = y3;
+        size[m] = i + 10;
+    }
+
+    void text(int m, String s, int x, int y) {
+        if (textCount == text.length) text = Arrays.copyOf(text, textCount * 2);
+        int[] c = reserve(m, 4);
+        int i = size[m];
+        c[i] = TEXT; c[i + 1] = textCount; c[i + 2] = x; c[i + 3] = y;
+        size[m] = i + 4;
+        text[textCount++] = s;
+    }
+
+    // draws every material in order and leaves the queue empty, keeping its arrays
+    void flush(Graphics2D g) {
+        for (int m = 0; m < COLORS.length; m++) {
+            if (size[m] == 0) continue;
+            g.setColor(COLORS[m]);
+            int[] c = commands[m];
+            for (int i = 0; i < size[m]; ) {
+                switch (c[i]) {
+                    case RECT:
+                        g.fillRect(c[i + 1], c[i + 2], c[i + 3], c[i + 4]);
+                        i += 5;
+                        break;
+                    case LINE:
+                        g.drawLine(c[i + 1], c[i + 2], c[i + 3], c[i + 4]);
+                        i += 5;
+                        break;
+                    case POLYGON:
+                        int n = c[i + 1];
+                        for (int k = 0; k < n; k++) {
+                            xs[k] = c[i + 2 + 2 * k];
+                            ys[k] = c[i + 3 + 2 * k];
+                        }
+                        g.fillPolygon(xs, ys, n);
+                        i += 2 + 2 * n;
+                        break;
+                    default:
+                        g.drawString(text[c[i + 1]], c[i + 2], c[i + 3]);
+                        i += 4;
+                }
+            }
+            size[m] = 0;
+        }
+        Arrays.fill(text, 0, textCount, null);
+        textCount = 0;
+    }
+}
+
+
+class GamePanel extends JPanel implements Runnable, KeyListener {
+    GameFrame parent;
+    Thread gameThread;
+    volatile boolean running = false;
+    GameSimulation sim = new GameSimulation();
+    // key changes go from the EDT to the game thread through a lock-free queue, each stamped with its time, and
+    // each tick takes exactly the changes made before it was due; keys is the EDT's own view of what is held
+    InputQueue input = new InputQueue();
+    int keys = 0;
+    // from a key event to the end of presenting the first frame that shows its tick: the game thread queues
+    // (event time, tick) for every change it applies and the drawing thread closes them as frames go out
+    InputQueue applied = new InputQueue();
+    LatencyHistogram inputLatency = new LatencyHistogram();
+    RenderFrame shown;
+    
+    BufferedImage bgImage;
+    BufferedImage bgLayer;   // bgImage with the stars already on it, opaque so it blits as a plain copy
+    int layerMap = -1;
+    BufferedImage scanlines;
+    Font retro = new Font("Monospaced", Font.BOLD, 14);
+    Random rnd = new Random();
+    String playerName;
+    static boolean useSprites = true;
+    SpriteCache sprites = new SpriteCache();
+    HudRenderer hud = new HudRenderer();
+    RenderQueue queue = new RenderQueue();
+    // -raster, or F4 in game, draws the whole frame in software into one image instead of through Java2D
+    static boolean defaultRaster = false;
+    volatile boolean rasterize = defaultRaster;
+    PixelRenderer pixels;
+    BufferedImage particleLayer;
+    int[] particlePixels;
+    int[] particleBounds = new int[4];
+    // -active draws from the game thread into a BufferStrategy instead of asking Swing to repaint
+    static boolean activeRendering = false;
+    Canvas canvas;
+    FrameStats frameStats = new FrameStats();
+    static boolean printStats = false;
+    // the game thread publishes every tick here and drawing only ever reads from it
+    FrameExchange frames = new FrameExchange();
+    // F3 switches the profiler on and shows its overlay; while off, the tick and paint pay one null check per phase
+    PhaseProfiler profiler = new PhaseProfiler();
+    volatile boolean showProfile = false;
+    String[] profileText;
+    long profileTextAt;
+    Font profileFont = new Font("Monospaced", Font.PLAIN, 11);
+    static final Color PROFILE_BACKDROP = new Color(0, 0, 0, 180);
+    long droppedTicks = 0;
+    
+    java.util.List<int[]> stars = new ArrayList<>();
+   
+    private javax.swing.Timer focusTimer;
+    
+    GamePanel(GameFrame p) {
+        this.parent = p;
+        setFocusable(true);
+        setFocusTraversalKeysEnabled(false); // get arrow keys to work
+        setBackground(Color.BLACK);
+        addKeyListener(this);
+        sim.onGameOver = this::gameOver;
+        if (activeRendering) {
+            setLayout(new BorderLayout());
+            canvas = new Canvas();
+            canvas.setIgnoreRepaint(true);
+            canvas.setFocusTraversalKeysEnabled(false);
+            canvas.addKeyListener(this);
+            add(canvas);
+        }
+        
+        for (int i = 0; i < 150; i++) {
+            stars.add(new int[]{rnd.nextInt(800), rnd.nextInt(600), rnd.nextInt(3)+1});
+        }
+
+        // again making sure the game window has the key 'focus' instead of the console below
+        focusTimer = new javax.swing.Timer(200, e -> {
+            if (running && !focusTarget().isFocusOwner()) {
+                focusTarget().requestFocusInWindow();
+            }
+        });
+        focusTimer.setRepeats(true);
+    }
+
+    void setup(int map, int ship, String user){
+        this.playerName = user;
+        keys = 0;
+        input.reset();
+        applied.reset();
+        sim.setup(map, ship);
+        sim.recording = new Replay(sim);
+        frames.publish(sim);
+        
+        // the background only changes with the map
+        if (map != layerMap) buildBackground(map);
+
+        // key 'focus' on game start
+        focusTarget().requestFocusInWindow();
+    }
+
+    Component focusTarget() {
+        return canvas != null ? canvas : this;
+    }
+
+    void buildBackground(int map) {
+        bgImage = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = bgImage.createGraphics();
+        
+        if (map == 0) {
+            g.setColor(new Color(0, 0, 10));
+            g.fillRect(0, 0, 800, 600);
+        } else if (map == 1) {
+            g.setColor(new Color(20, 0, 30));
+            g.fillRect(0, 0, 800, 600);
+            g.setColor(new Color(80, 0, 120, 80));
+            for (int i = 0; i < 15; i++) {
+                int size = 50 + rnd.nextInt(50);
+                g.fillOval(rnd.nextInt(800), rnd.nextInt(600), size, size);
+            }
+        } else {
+            g.setColor(new Color(15, 15, 25));
+            g.fillRect(0, 0, 800, 600);
+            g.setColor(new Color(80, 80, 80, 100));
+            for (int i = 0; i < 25; i++) {
+                int size = 10 + rnd.nextInt(20);
+                g.fillOval(rnd.nextInt(800), rnd.nextInt(600), size, size);
+            }
+        }
+        
+        g.dispose();
+
+        bgLayer = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        g = bgLayer.createGraphics();
+        g.drawImage(bgImage, 0, 0, null);
+        g.setColor(Color.WHITE);
+        for (int[] star : stars) {
+            g.fillRect(star[0], star[1], star[2], star[2]);
+        }
+        g.dispose();
+        layerMap = map;
+    }
+
+    // the 200 translucent scanline strips baked into one image; a single blit beats 200 fillRects
+    BufferedImage scanlineOverlay() {
+        if (scanlines == null) {
+            scanlines = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g = scanlines.createGraphics();
+            g.setColor(new Color(0, 0, 0, PixelRenderer.SCANLINE_ALPHA));
+            for (int y = 0; y < 600; y += 3) {
+                g.fillRect(0, y, 800, 1);
+            }
+            g.dispose();
+        }
+        return scanlines;
+    }
+
+    void start() {
+        running = true;
+        frameStats.reset();
+        droppedTicks = 0;
+        if (canvas != null && canvas.getBufferStrategy() == null) canvas.createBufferStrategy(2);
+        if (gameThread == null || !gameThread.isAlive()) {
+            gameThread = new Thread(this);
+            gameThread.start();
+        }
+        // key 'focus' again
+        focusTimer.start();
+        focusTarget().requestFocusInWindow();
+    }
+
+    void stop() {
+        running = false;
+        focusTimer.stop();
+        try { if (gameThread != null && gameThread != Thread.currentThread()) gameThread.join(); } catch (InterruptedException ignored) {}
+        reportFrames();
+    }
+
+    // the most ticks run back to back before a frame, about 80 ms of game time; a longer stall is dropped
+    // rather than fast-forwarded, so a slow machine runs slow instead of spiralling
+    int maxCatchUp() {
+        return Math.max(2, sim.tickRate / 12);
+    }
+
+    // due is when this tick's slot ended: key changes stamped up to then are its input, later ones wait
+    void tick(long due) {
+        long t0 = System.nanoTime();
+        sim.updateGame(input.drain(due, applied, sim.tick + 1));
+        if (GameSimulation.stressAsteroids > 0) sim.logTickTime(System.nanoTime() - t0);
+        frames.publish(sim);
+    }
+
+    // closes every input whose tick the frame just presented is the first to show
+    void presented(long now) {
+        RenderFrame f = shown;
+        if (f == null) return;
+        while (applied.available() && applied.value() <= f.tick) {
+            inputLatency.record(now - applied.time());
+            applied.take();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (canvas != null) {
+            runActive();
+            return;
+        }
+        long last = System.nanoTime();
+        final double nsPerTick = 1000000000.0 / sim.tickRate;
+        double delta = 0;
+        while (running) {
+            long now = System.nanoTime();
+            delta += (now - last) / nsPerTick;
+            last = now;
+            if (delta > maxCatchUp()) {
+                droppedTicks += (long) delta - maxCatchUp();
+                delta = maxCatchUp() + delta % 1;
+            }
+            boolean shouldRepaint = false;
+            while (delta >= 1 && running) {
+                tick(now - (long) ((delta - 1) * nsPerTick));
+                delta--;
+                shouldRepaint = true;
+            }
+            if (shouldRepaint) repaint();
+            try { Thread.sleep(10); } catch (InterruptedException ignored) {}
+        }
+    }
+
+    // fixed-step ticks, then one frame at the display rate drawn between the last two ticks
+    void runActive() {
+        final long tickNanos = 1_000_000_000L / sim.tickRate;
+        final long frameNanos = 1_000_000_000L / refreshRate();
+        long last = System.nanoTime(), acc = 0, nextFrame = last;
+        while (running) {
+            long now = System.nanoTime();
+            acc += now - last;
+            last = now;
+            if (acc > maxCatchUp() * tickNanos) {
+                droppedTicks += acc / tickNanos - maxCatchUp();
+                acc = maxCatchUp() * tickNanos + acc % tickNanos;
+            }
+            while (acc >= tickNanos && running) {
+                tick(now - acc + tickNanos);
+                acc -= tickNanos;
+            }
+            if (!running) break;
+            renderFrame(acc / (double) tickNanos);
+
+            nextFrame += frameNanos;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) java.util.concurrent.locks.LockSupport.parkNanos(wait);
+            else nextFrame = System.nanoTime();
         }
-        
-        if (tick % 20 == 0) {
-            score++;
+    }
+
+    int refreshRate() {
+        int hz = getGraphicsConfiguration() == null ? DisplayMode.REFRESH_RATE_UNKNOWN
+                : getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+        return hz == DisplayMode.REFRESH_RATE_UNKNOWN || hz <= 0 ? 60 : hz;
+    }
+
+    void renderFrame(double alpha) {
+        java.awt.image.BufferStrategy bs = canvas.getBufferStrategy();
+        do {
+            do {
+                Graphics2D g = (Graphics2D) bs.getDrawGraphics();
+                render(g, alpha);
+                g.dispose();
+            } while (bs.contentsRestored());
+            bs.show();
+        } while (bs.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+        long now = System.nanoTime();
+        frameStats.frame(now);
+        presented(now);
+    }
+
+    void reportFrames() {
+        if (!printStats || frameStats.count() == 0) {
+            frameStats.reset();
+            inputLatency.reset();
+            return;
+        }
+        System.out.println((canvas != null ? "active" : "passive") + " rendering, " + sim.tickRate + " Hz sim: "
+                + frameStats.summary() + ", " + droppedTicks + " ticks dropped");
+        frameStats.reset();
+        LatencyHistogram h = inputLatency;
+        if (h.total > 0) {
+            System.out.printf("input to photon: %d inputs, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d key changes dropped%n",
+                    h.total, h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.max / 1e6, input.dropped);
         }
+        h.reset();
     }
-    
+
     void gameOver() {
         running = false;
         focusTimer.stop();
+        reportFrames();
+        saveReplay();
+        int score = sim.score;
         parent.userData.saveScore(playerName, score);
         SwingUtilities.invokeLater(() -> {
             JOptionPane.showMessageDialog(this, "GAME OVER\nFinal Score: " + score);
@@ -921,79 +3125,984 @@ class GamePanel extends JPanel implements Runnable, KeyListener {
         });
     }
 
+    void saveReplay() {
+        try {
+            sim.recording.finish(sim).write(new File("last-replay.bin"));
+        } catch (IOException ignored) {}
+    }
+
     @Override
     protected void paintComponent(Graphics g0) {
         super.paintComponent(g0);
-        Graphics2D g = (Graphics2D) g0;
-        
-        g.drawImage(bgImage, 0, 0, null);
-        
-        g.setColor(Color.WHITE);
-        for (int[] star : stars) {
-            g.fillRect(star[0], star[1], star[2], star[2]);
+        if (canvas != null) return;
+        render((Graphics2D) g0, 1);
+        if (running) {
+            long now = System.nanoTime();
+            frameStats.frame(now);
+            presented(now);
         }
-        
-        for (SpaceObject a : asteroids) a.draw(g);
-        for (SpaceObject u : ufos) u.draw(g);
-        for (Laser l : lasers) l.draw(g);
-        for (PowerUp p : powerups) p.draw(g);
-        
-        player.draw(g);
-        
-        for (int[] exp : explosions) {
-            g.setColor(Color.ORANGE);
-            g.fillOval(exp[0]-exp[2], exp[1]-exp[2], exp[2]*2, exp[2]*2);
-            g.setColor(Color.YELLOW);
-            g.fillOval(exp[0]-exp[2]/2, exp[1]-exp[2]/2, exp[2], exp[2]);
+    }
+
+    void render(Graphics2D g, double alpha) {
+        PhaseProfiler prof = showProfile ? profiler : null;
+        long t0 = prof == null ? 0 : System.nanoTime(), t = t0;
+        RenderFrame f = frames.latest();
+        shown = f;
+
+        if (rasterize) {
+            if (pixels == null) pixels = new PixelRenderer();
+            g.drawImage(pixels.render(g, getFont(), retro, f, alpha, bgLayer, hud), 0, 0, null);
+            if (prof != null) t = prof.lap(PhaseProfiler.RASTER, t);
+        } else {
+            t = draw2D(g, f, alpha, prof, t);
         }
+        if (prof != null) {
+            prof.record(PhaseProfiler.FRAME, t - t0);
+            drawProfile(g, prof);
+        }
+    }
+
+    // all particles land in one overlay image that goes down in a single blit of the rectangle they cover,
+    // which is then cleared again so the layer is empty for the next frame
+    void drawParticles(Graphics2D g, Particles particles, double alpha) {
+        if (particles.count == 0) return;
+        if (particleLayer == null) {
+            particleLayer = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB_PRE);
+            particlePixels = PixelRenderer.pixels(particleLayer);
+        }
+        int[] b = particleBounds;
+        particles.draw(particlePixels, 800, 600, alpha, 0xff000000, 0, 600, b);
+        if (b[2] <= b[0]) return;
+        g.drawImage(particleLayer, b[0], b[1], b[2], b[3], b[0], b[1], b[2], b[3], null);
+        for (int row = b[1]; row < b[3]; row++) Arrays.fill(particlePixels, row * 800 + b[0], row * 800 + b[2], 0);
+    }
+
+    // the Java2D backend: one drawing call per image or primitive, phases lapped as they finish
+    long draw2D(Graphics2D g, RenderFrame f, double alpha, PhaseProfiler prof, long t) {
+        EntityStore store = f.store;
+        Explosions explosions = f.explosions;
         
-        g.setColor(new Color(0, 255, 255, 150));
-        g.fillRect(5, 5, 200, 70);
-        g.setColor(Color.BLACK);
-        g.fillRect(10, 10, 190, 60);
-        
-        g.setColor(Color.WHITE);
-        g.setFont(retro);
-        g.drawString("SCORE: " + score, 20, 30);
-        g.drawString("HEALTH: " + player.health, 20, 50);
-        g.drawString("ASTEROIDS: " + asteroids.size(), 120, 30);
+        g.drawImage(bgLayer, 0, 0, null);
+        if (prof != null) t = prof.lap(PhaseProfiler.BACKGROUND, t);
         
-        g.setColor(new Color(0, 255, 255, 150));
-        g.fillRect(595, 5, 200, 70);
-        g.setColor(Color.BLACK);
-        g.fillRect(600, 10, 190, 60);
+        if (useSprites) {
+            sprites.prepare(g, getFont());
+            sprites.drawEntities(g, store, alpha);
+            if (f.player.visible()) sprites.drawShip(g, f.player, alpha);
+        } else {
+            for (int i = store.base[EntityStore.ASTEROID]; i < store.end(EntityStore.ASTEROID); i++) {
+                if (store.isAlive(i)) SpriteCache.paintAsteroid(queue, store.shape, i * EntityStore.SHAPE,
+                        (int)store.drawX(i, alpha) + store.w[i]/2, (int)store.drawY(i, alpha) + store.h[i]/2);
+            }
+            for (int i = store.base[EntityStore.UFO]; i < store.end(EntityStore.UFO); i++) {
+                if (store.isAlive(i)) SpriteCache.paintUfo(queue, (int)store.drawX(i, alpha), (int)store.drawY(i, alpha));
+            }
+            for (int i = store.base[EntityStore.LASER]; i < store.end(EntityStore.LASER); i++) {
+                if (store.isAlive(i)) SpriteCache.paintLaser(queue, (int)store.drawX(i, alpha), (int)store.drawY(i, alpha),
+                        store.w[i], store.h[i], store.kind[i] == 1, (store.timer[i] >> 2) % 4 < 2);
+            }
+            for (int i = store.base[EntityStore.POWERUP]; i < store.end(EntityStore.POWERUP); i++) {
+                if (store.isAlive(i)) SpriteCache.paintPowerUp(queue, (int)store.drawX(i, alpha), (int)store.drawY(i, alpha),
+                        store.kind[i], SpriteCache.PULSE_SIZE[store.timer[i] >> 2]);
+            }
+            f.player.draw(queue, alpha);
+            queue.flush(g);
+        }
+        if (prof != null) t = prof.lap(PhaseProfiler.ENTITIES, t);
         
-        g.setColor(Color.WHITE);
-        g.drawString("MAP: " + (mapIndex == 0 ? "DEEP SPACE" : mapIndex == 1 ? "NEBULA" : "BELT"), 610, 30);
-        g.drawString("SHIP: " + (shipChoice == 0 ? "FIGHTER" : shipChoice == 1 ? "INTERCEPTOR" : "BOMBER"), 610, 50);
+        if (useSprites) {
+            sprites.drawExplosions(g, explosions);
+        } else {
+            for (int i = 0; i < explosions.count; i++) {
+                int ex = explosions.x[i], ey = explosions.y[i], er = explosions.r[i] >> 2;
+                g.setColor(Color.ORANGE);
+                g.fillOval(ex-er, ey-er, er*2, er*2);
+                g.setColor(Color.YELLOW);
+                g.fillOval(ex-er/2, ey-er/2, er, er);
+            }
+        }
+        drawParticles(g, f.particles, alpha);
+        if (prof != null) t = prof.lap(PhaseProfiler.EFFECTS, t);
         
-        g.setColor(Color.GRAY);
-        g.drawString("CONTROLS: ARROWS=MOVE, SPACE=SHOOT, ESC=MENU", 10, 585);
+        hud.draw(g, retro, f.score, f.player.health, store.live[EntityStore.ASTEROID], f.mapIndex, f.shipChoice);
         
-        g.setColor(new Color(0, 0, 0, 30));
-        for (int y = 0; y < 600; y += 3) {
-            g.fillRect(0, y, 800, 1);
+        g.drawImage(scanlineOverlay(), 0, 0, null);
+        if (prof != null) t = prof.lap(PhaseProfiler.HUD, t);
+        return t;
+    }
+
+    // per-phase percentiles under the score box; the text is rebuilt twice a second, not every frame
+    void drawProfile(Graphics2D g, PhaseProfiler prof) {
+        long now = System.nanoTime();
+        if (profileText == null || now - profileTextAt > 500_000_000L) {
+            profileText = prof.table();
+            profileTextAt = now;
         }
+        g.setFont(profileFont);
+        g.setColor(PROFILE_BACKDROP);
+        g.fillRect(5, 80, 330, 14 * profileText.length + 8);
+        g.setColor(Color.GREEN);
+        for (int i = 0; i < profileText.length; i++) g.drawString(profileText[i], 10, 94 + 14 * i);
     }
 
     @Override public void keyPressed(KeyEvent e) {
         int k = e.getKeyCode();
-        if (k == KeyEvent.VK_LEFT) leftPressed = true;
-        if (k == KeyEvent.VK_RIGHT) rightPressed = true;
-        if (k == KeyEvent.VK_UP) upPressed = true;
-        if (k == KeyEvent.VK_DOWN) downPressed = true;
-        if (k == KeyEvent.VK_SPACE) spacePressed = true;
-        if (k == KeyEvent.VK_ESCAPE) { running = false; focusTimer.stop(); parent.showMenu(); }
+        int held = keys;
+        if (k == KeyEvent.VK_LEFT) held |= GameSimulation.LEFT;
+        if (k == KeyEvent.VK_RIGHT) held |= GameSimulation.RIGHT;
+        if (k == KeyEvent.VK_UP) held |= GameSimulation.UP;
+        if (k == KeyEvent.VK_DOWN) held |= GameSimulation.DOWN;
+        if (k == KeyEvent.VK_SPACE) held |= GameSimulation.FIRE;
+        keyChange(e, held);
+        if (k == KeyEvent.VK_ESCAPE) { stop(); saveReplay(); parent.showMenu(); }
+        if (k == KeyEvent.VK_F3) toggleProfile();
+        if (k == KeyEvent.VK_F4) rasterize = !rasterize;
+    }
+
+    void toggleProfile() {
+        if (!showProfile) {
+            profiler.reset();
+            profileText = null;
+        }
+        showProfile = !showProfile;
+        sim.profiler = showProfile ? profiler : null;
+        if (!showProfile && printStats) System.out.print(String.join(System.lineSeparator(), profiler.table()) + System.lineSeparator());
     }
     
     @Override public void keyReleased(KeyEvent e) {
         int k = e.getKeyCode();
-        if (k == KeyEvent.VK_LEFT) leftPressed = false;
-        if (k == KeyEvent.VK_RIGHT) rightPressed = false;
-        if (k == KeyEvent.VK_UP) upPressed = false;
-        if (k == KeyEvent.VK_DOWN) downPressed = false;
-        if (k == KeyEvent.VK_SPACE) spacePressed = false;
+        int held = keys;
+        if (k == KeyEvent.VK_LEFT) held &= ~GameSimulation.LEFT;
+        if (k == KeyEvent.VK_RIGHT) held &= ~GameSimulation.RIGHT;
+        if (k == KeyEvent.VK_UP) held &= ~GameSimulation.UP;
+        if (k == KeyEvent.VK_DOWN) held &= ~GameSimulation.DOWN;
+        if (k == KeyEvent.VK_SPACE) held &= ~GameSimulation.FIRE;
+        keyChange(e, held);
+    }
+
+    // auto-repeat changes nothing and is not queued. the stamp is moved back by however long the event sat
+    // in the toolkit before reaching the EDT, which getWhen records to the millisecond
+    void keyChange(KeyEvent e, int held) {
+        if (held == keys) return;
+        keys = held;
+        long now = System.nanoTime();
+        long queued = Math.max(0, Math.min(1000, System.currentTimeMillis() - e.getWhen()));
+        input.offer(now - queued * 1_000_000L, held);
     }
     
     @Override public void keyTyped(KeyEvent e) {}
 }
+
+// a single-producer single-consumer ring of (time, value) entries: key changes from the EDT to the game thread,
+// and applied inputs from the game thread to the drawing thread. the producer only writes tail and the consumer
+// only writes head; each index is published with a release store and read with an acquire load, so neither
+// side ever locks, spins or retries
+class InputQueue {
+    static final int SIZE = 1024, MASK = SIZE - 1;
+    final long[] times = new long[SIZE];
+    final int[] values = new int[SIZE];
+    final java.util.concurrent.atomic.AtomicLong head = new java.util.concurrent.atomic.AtomicLong();
+    final java.util.concurrent.atomic.AtomicLong tail = new java.util.concurrent.atomic.AtomicLong();
+    long headSeen;        // producer: the last head it read, so a full check rarely touches the other side's line
+    int dropped;          // producer: entries lost to a full ring; a key change after it still carries every key
+    long next, tailSeen;  // consumer: the next entry to take and the last tail it read
+    int held;             // consumer of key changes: keys held after the last change taken
+
+    // producer side; false if the ring is full
+    boolean offer(long time, int value) {
+        long t = tail.get();
+        if (t - headSeen == SIZE) {
+            headSeen = head.get();
+            if (t - headSeen == SIZE) {
+                dropped++;
+                return false;
+            }
+        }
+        int i = (int) t & MASK;
+        times[i] = time;
+        values[i] = value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // consumer side: available, then time and value of the oldest entry, then take it
+    boolean available() {
+        if (next < tailSeen) return true;
+        tailSeen = tail.get();
+        return next < tailSeen;
+    }
+
+    long time() { return times[(int) next & MASK]; }
+
+    int value() { return values[(int) next & MASK]; }
+
+    void take() {
+        next++;
+        head.lazySet(next);
+    }
+
+    // takes every key change made up to due and returns the tick's input: the keys held now plus any key that
+    // went down in the meantime, so a tap shorter than a tick still lands. each change taken is passed on to
+    // applied as (its time, tick)
+    int drain(long due, InputQueue applied, int tick) {
+        int pressed = 0;
+        while (available() && time() - due <= 0) {
+            int keys = value();
+            pressed |= keys & ~held;
+            held = keys;
+            applied.offer(time(), tick);
+            take();
+        }
+        return held | pressed;
+    }
+
+    // only while neither side is running
+    void reset() {
+        head.set(0);
+        tail.set(0);
+        headSeen = next = tailSeen = 0;
+        held = dropped = 0;
+    }
+}
+
+// what drawing needs from one tick, copied out so the renderer never reads state the game thread is writing
+class RenderFrame {
+    final EntityStore store = new EntityStore();
+    final Explosions explosions = new Explosions();
+    final Particles particles = new Particles();
+    final PlayerShip player = new PlayerShip(0, 0, 0);
+    int score, mapIndex, shipChoice, tick;
+
+    void copyFrom(GameSimulation sim) {
+        store.copyFrom(sim.store);
+        explosions.copyFrom(sim.explosions);
+        particles.copyFrom(sim.particles);
+        PlayerShip p = sim.player;
+        player.x = p.x; player.y = p.y; player.px = p.px; player.py = p.py;
+        player.blinkTimer = p.blinkTimer;
+        player.health = p.health;
+        player.shipType = p.shipType;
+        score = sim.score;
+        tick = sim.tick;
+        mapIndex = sim.mapIndex;
+        shipChoice = sim.shipChoice;
+    }
+}
+
+// triple buffering: the game thread fills one frame, the renderer draws another and the third holds the
+// newest complete one. both sides swap through a single atomic int, so neither ever waits on the other
+class FrameExchange {
+    static final int FRESH = 4;  // set on the middle index when it holds a frame the renderer hasn't taken
+    final RenderFrame[] frames = {new RenderFrame(), new RenderFrame(), new RenderFrame()};
+    final java.util.concurrent.atomic.AtomicInteger middle = new java.util.concurrent.atomic.AtomicInteger(1);
+    int back = 0;   // only touched by the publishing thread
+    int front = 2;  // only touched by the drawing thread
+
+    void publish(GameSimulation sim) {
+        frames[back].copyFrom(sim);
+        back = middle.getAndSet(back | FRESH) & 3;
+    }
+
+    // the newest published frame; the same one again if nothing was published since the last call
+    RenderFrame latest() {
+        if ((middle.get() & FRESH) != 0) front = middle.getAndSet(front) & 3;
+        return frames[front];
+    }
+}
+
+// Flight Recorder events, so a recording lines ticks, collisions and file writes up against GC and I/O.
+// they follow the usual JFR settings (e.g. asteroids.Tick#enabled=false); the per-tick ones check isEnabled()
+// on a probe instance first, so with no recording running the tick allocates nothing for them
+class GameEvents {
+    static final Tick TICK = new Tick();
+    static final Collisions COLLISIONS = new Collisions();
+
+    @jdk.jfr.Name("asteroids.Tick")
+    @jdk.jfr.Label("Game Tick")
+    @jdk.jfr.Category({"Asteroids", "Game Loop"})
+    @jdk.jfr.StackTrace(false)
+    static class Tick extends jdk.jfr.Event {
+        @jdk.jfr.Label("Tick") long tick;
+        @jdk.jfr.Label("Asteroids") int asteroids;
+        @jdk.jfr.Label("UFOs") int ufos;
+        @jdk.jfr.Label("Lasers") int lasers;
+        @jdk.jfr.Label("Explosions") int explosions;
+        @jdk.jfr.Label("Particles") int particles;
+    }
+
+    @jdk.jfr.Name("asteroids.Collisions")
+    @jdk.jfr.Label("Collision Pass")
+    @jdk.jfr.Category({"Asteroids", "Game Loop"})
+    @jdk.jfr.StackTrace(false)
+    static class Collisions extends jdk.jfr.Event {
+        @jdk.jfr.Label("Pass") String pass;
+        @jdk.jfr.Label("Pairs Tested") int pairsTested;
+        @jdk.jfr.Label("Hits") int hits;
+
+        // a started event, or null while the type is disabled
+        static Collisions start() {
+            if (!COLLISIONS.isEnabled()) return null;
+            Collisions e = new Collisions();
+            e.begin();
+            return e;
+        }
+
+        void finish(String pass, int pairsTested, int hits) {
+            if (!shouldCommit()) return;
+            this.pass = pass;
+            this.pairsTested = pairsTested;
+            this.hits = hits;
+            commit();
+        }
+    }
+
+    @jdk.jfr.Name("asteroids.Save")
+    @jdk.jfr.Label("User Data Write")
+    @jdk.jfr.Category({"Asteroids", "Persistence"})
+    static class Save extends jdk.jfr.Event {
+        @jdk.jfr.Label("File") String file;
+        @jdk.jfr.Label("Bytes") @jdk.jfr.DataAmount long bytes;
+        @jdk.jfr.Label("Records") int records;
+
+        void finish(File f, long bytes, int records) {
+            if (!shouldCommit()) return;
+            this.file = f.getPath();
+            this.bytes = bytes;
+            this.records = records;
+            commit();
+        }
+    }
+
+    @jdk.jfr.Name("asteroids.GameOver")
+    @jdk.jfr.Label("Game Over")
+    @jdk.jfr.Category({"Asteroids", "Game Loop"})
+    static class GameOver extends jdk.jfr.Event {
+        @jdk.jfr.Label("Score") int score;
+        @jdk.jfr.Label("Tick") long tick;
+        @jdk.jfr.Label("Seed") long seed;
+        @jdk.jfr.Label("Map") int map;
+        @jdk.jfr.Label("Ship") int ship;
+    }
+}
+
+// log-linear buckets in the style of HdrHistogram: 32 per power of two, so any recorded value is within about
+// 3% of its bucket, from 1 ns up to about a minute, in a fixed array that recording never reallocates
+class LatencyHistogram {
+    static final int SUB_BITS = 5, SUB = 1 << SUB_BITS, HALF = SUB / 2;
+    static final long MAX = (1L << 36) - 1;
+    final long[] counts = new long[bucket(MAX) + 1];
+    long total, max;
+
+    static int bucket(long v) {
+        if (v < SUB) return (int) Math.max(v, 0);
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1;
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    // the largest value that lands in bucket b
+    static long highest(int b) {
+        if (b < SUB) return b;
+        int shift = (b - SUB) / HALF + 1;
+        return ((long) (b - shift * HALF) << shift) + (1L << shift) - 1;
+    }
+
+    void record(long v) {
+        if (v > MAX) v = MAX;
+        counts[bucket(v)]++;
+        total++;
+        if (v > max) max = v;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        total = max = 0;
+    }
+
+    // q in 0..1
+    long percentile(double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total)), seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) return Math.min(highest(b), max);
+        }
+        return max;
+    }
+}
+
+// one histogram per tick phase and paint phase; each is only written by the thread that runs that phase
+class PhaseProfiler {
+    static final int INPUT = 0, SPAWN = 1, MOVE = 2, GRID = 3, LASERS = 4, PLAYER = 5, DECAY = 6, UPKEEP = 7,
+            TICK = 8, BACKGROUND = 9, ENTITIES = 10, EFFECTS = 11, HUD = 12, RASTER = 13, FRAME = 14;
+    static final String[] NAMES = {"input", "spawn", "move", "grid", "lasers", "player", "decay", "upkeep",
+            "TICK", "background", "entities", "effects", "hud", "raster", "FRAME"};
+    final LatencyHistogram[] phases = new LatencyHistogram[NAMES.length];
+
+    PhaseProfiler() {
+        for (int i = 0; i < phases.length; i++) phases[i] = new LatencyHistogram();
+    }
+
+    // records the time since t and returns now, so phases chain without a second clock read
+    long lap(int phase, long t) {
+        long now = System.nanoTime();
+        phases[phase].record(now - t);
+        return now;
+    }
+
+    void record(int phase, long nanos) {
+        phases[phase].record(nanos);
+    }
+
+    void reset() {
+        for (LatencyHistogram h : phases) h.reset();
+    }
+
+    String[] table() {
+        String[] lines = new String[NAMES.length + 1];
+        lines[0] = String.format("%-10s %8s %8s %8s %8s", "us (F3)", "p50", "p99", "p999", "max");
+        for (int i = 0; i < NAMES.length; i++) {
+            LatencyHistogram h = phases[i];
+            lines[i + 1] = String.format("%-10s %8.1f %8.1f %8.1f %8.1f", NAMES[i], h.percentile(0.5) / 1e3,
+                    h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max / 1e3);
+        }
+        return lines;
+    }
+}
+
+// the last few thousand frame-to-frame intervals, for percentiles that show stutter an average would hide
+class FrameStats {
+    long[] intervals = new long[4096];
+    int count = 0, head = 0;
+    long last = 0;
+
+    void reset() {
+        count = head = 0;
+        last = 0;
+    }
+
+    void frame(long now) {
+        if (last != 0) {
+            intervals[head] = now - last;
+            head = (head + 1) % intervals.length;
+            if (count < intervals.length) count++;
+        }
+        last = now;
+    }
+
+    int count() { return count; }
+
+    // p in 0..100, in milliseconds
+    double percentile(double p) {
+        long[] sorted = Arrays.copyOf(intervals, count);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(p / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, i))] / 1e6;
+    }
+
+    String summary() {
+        return String.format("%d frames, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                count, percentile(50), percentile(95), percentile(99), percentile(100));
+    }
+}
+
+
+// seed, settings and one input byte per tick, enough to rerun a game exactly; runs are stored as byte + length
+class Replay {
+    static final int MAGIC = 0x41525032;  // "ARP2", adds the tick rate
+    static final int MAX_TICKS = 240 * 60 * 60 * 24;  // a day at the fastest rate; longer is a corrupt file
+    long seed;
+    int map, ship, stress, tickRate = 60;
+    byte[] inputs = new byte[4096];
+    int ticks = 0;
+    int finalScore;
+    long finalHash;
+
+    Replay() {}
+
+    Replay(GameSimulation sim) {
+        seed = sim.seed;
+        map = sim.mapIndex;
+        ship = sim.shipChoice;
+        stress = GameSimulation.stressAsteroids;
+        tickRate = sim.tickRate;
+    }
+
+    void record(int input) {
+        if (ticks == inputs.length) inputs = Arrays.copyOf(inputs, ticks * 2);
+        inputs[ticks++] = (byte) input;
+    }
+
+    Replay finish(GameSimulation sim) {
+        finalScore = sim.score;
+        finalHash = sim.stateHash();
+        return this;
+    }
+
+    void write(File f) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(seed);
+            out.writeByte(map);
+            out.writeByte(ship);
+            out.writeInt(stress);
+            out.writeShort(tickRate);
+            out.writeInt(ticks);
+            for (int i = 0; i < ticks; ) {
+                int run = 1;
+                while (i + run < ticks && inputs[i + run] == inputs[i]) run++;
+                out.writeByte(inputs[i]);
+                writeVarInt(out, run);
+                i += run;
+            }
+            out.writeInt(finalScore);
+            out.writeLong(finalHash);
+        }
+    }
+
+    static Replay read(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a replay file");
+            Replay r = new Replay();
+            r.seed = in.readLong();
+            r.map = in.readByte();
+            r.ship = in.readByte();
+            r.stress = in.readInt();
+            r.tickRate = in.readShort();
+            r.ticks = in.readInt();
+            int rate = r.tickRate;
+            if (Arrays.stream(GameSimulation.TICK_RATES).noneMatch(t -> t == rate)) throw new IOException("bad tick rate " + rate);
+            if (r.ticks < 0 || r.ticks > MAX_TICKS) throw new IOException("bad tick count " + r.ticks);
+            r.inputs = new byte[Math.max(r.ticks, 1)];
+            for (int i = 0; i < r.ticks; ) {
+                byte input = in.readByte();
+                int run = readVarInt(in);
+                if (run <= 0 || i + run > r.ticks) throw new IOException("corrupt input run");
+                Arrays.fill(r.inputs, i, i + run, input);
+                i += run;
+            }
+            r.finalScore = in.readInt();
+            r.finalHash = in.readLong();
+            return r;
+        }
+    }
+
+    // reruns the recording with no rendering or sleeping and reports whether it ended in the same state
+    boolean play() {
+        GameSimulation.stressAsteroids = stress;
+        GameSimulation sim = new GameSimulation();
+        sim.tickRate = tickRate;
+        sim.setup(map, ship, seed);
+        long t0 = System.nanoTime();
+        int played = 0;
+        while (played < ticks && !sim.over) sim.updateGame(inputs[played++]);
+        double secs = (System.nanoTime() - t0) / 1e9;
+        boolean same = sim.score == finalScore && sim.stateHash() == finalHash;
+        System.out.printf("%d ticks at %d Hz in %.3f s = %.0f ticks/sec, score %d, hash %016x: %s%n",
+                played, tickRate, secs, played / secs, sim.score, sim.stateHash(),
+                same ? "matches recording" : "DIFFERS from recording (score " + finalScore + ", hash " + Long.toHexString(finalHash) + ")");
+        return same;
+    }
+
+    static void writeVarInt(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("varint too long");
+    }
+}
+
+// hosts many headless games on a handful of threads: a timing wheel releases each session when its
+// next tick is due and a fixed worker pool runs it, instead of one sleeping thread per game
+class SessionHost {
+    static final long SLOT = 1_000_000L;  // 1 ms wheel resolution
+    static final int SLOTS = 64;
+
+    class Session implements Runnable {
+        final int id;
+        final String user;
+        final GameSimulation sim = new GameSimulation();
+        final long period = 1_000_000_000L / sim.tickRate;
+        long nextDue;
+        long ticks, jitterSum, jitterMax, busy, skipped;
+        int games;
+
+        Session(int id, long due) {
+            this.id = id;
+            this.user = "pilot" + id;
+            this.nextDue = due;
+            userData.register(user, user);
+            sim.store.pool = null;  // the host already spreads sessions across cores
+            sim.setup(id % 3, id % 3, id);
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            long late = Math.max(0, start - nextDue);
+            jitterSum += late;
+            jitterMax = Math.max(jitterMax, late);
+            ticks++;
+
+            sim.updateGame(GameSimulation.sweep(sim.tick + id * 37));
+            if (sim.over) {
+                userData.saveScore(user, sim.score);
+                games++;
+                sim.setup(id % 3, id % 3, id + games * 7919L);
+            }
+
+            // fixed rate, but a session that fell more than a few ticks behind drops them rather than bursting
+            nextDue += period;
+            long now = System.nanoTime();
+            if (now - nextDue > 4 * period) {
+                skipped += (now - nextDue) / period;
+                nextDue = now + period;
+            }
+            busy += now - start;
+            rescheduled.add(this);
+        }
+    }
+
+    final UserData userData;
+    final Session[] sessions;
+    final java.util.List<Session>[] wheel;
+    final ConcurrentLinkedQueue<Session> rescheduled = new ConcurrentLinkedQueue<>();
+    final ExecutorService workers;
+    final int cores = Runtime.getRuntime().availableProcessors();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SessionHost(UserData userData, int count) {
+        this.userData = userData;
+        wheel = new java.util.List[SLOTS];
+        for (int i = 0; i < SLOTS; i++) wheel[i] = new ArrayList<>();
+        workers = Executors.newFixedThreadPool(cores, r -> {
+            Thread t = new Thread(r, "session-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        // stagger the first ticks across one period so sessions don't all land in the same slot
+        long now = System.nanoTime();
+        sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new Session(i, now);
+            sessions[i].nextDue += sessions[i].period * i / count;
+        }
+    }
+
+    void run(int seconds) {
+        for (Session s : sessions) rescheduled.add(s);
+        long start = System.nanoTime(), stop = start + seconds * 1_000_000_000L;
+        long cursor = start - Math.floorMod(start, SLOT);
+        while (System.nanoTime() < stop) {
+            for (Session s; (s = rescheduled.poll()) != null; ) {
+                if (s.nextDue < cursor + SLOT) workers.execute(s);
+                else wheel[Math.floorMod(s.nextDue / SLOT, SLOTS)].add(s);
+            }
+            long now = System.nanoTime();
+            while (cursor <= now) {
+                cursor += SLOT;
+                java.util.List<Session> slot = wheel[Math.floorMod(cursor / SLOT, SLOTS)];
+                int keep = 0;
+                for (int i = 0; i < slot.size(); i++) {
+                    Session s = slot.get(i);
+                    if (s.nextDue < cursor + SLOT) workers.execute(s);
+                    else slot.set(keep++, s);  // due on a later turn of the wheel
+                }
+                slot.subList(keep, slot.size()).clear();
+            }
+            java.util.concurrent.locks.LockSupport.parkNanos(cursor - System.nanoTime());
+        }
+        workers.shutdown();
+        try { workers.awaitTermination(1, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
+        report(System.nanoTime() - start);
+    }
+
+    void report(long elapsed) {
+        int n = sessions.length;
+        double[] means = new double[n];
+        long ticks = 0, busy = 0, skipped = 0, worst = 0;
+        for (int i = 0; i < n; i++) {
+            Session s = sessions[i];
+            means[i] = s.ticks == 0 ? 0 : s.jitterSum / (double) s.ticks / 1e6;
+            ticks += s.ticks;
+            busy += s.busy;
+            skipped += s.skipped;
+            worst = Math.max(worst, s.jitterMax);
+        }
+        Arrays.sort(means);
+        double secs = elapsed / 1e9;
+        System.out.printf("%d sessions on %d cores (%.1f sessions/core) for %.1f s%n", n, cores, n / (double) cores, secs);
+        System.out.printf("ticks: %d (%.1f/s per session, target %d), skipped %d%n", ticks, ticks / secs / n,
+                GameSimulation.defaultTickRate, skipped);
+        System.out.printf("per-session mean jitter: p50 %.3f ms, p99 %.3f ms, worst single tick %.3f ms%n",
+                means[n / 2], means[Math.min(n - 1, (int) (n * 0.99))], worst / 1e6);
+        System.out.printf("worker utilisation: %.1f%%%n", 100.0 * busy / (elapsed * (double) cores));
+    }
+}
+
+// draws seeded games through Java2D and the software renderer and compares them pixel by pixel
+class RasterCheck {
+    static boolean run() {
+        System.setProperty("java.awt.headless", "true");
+        int frames = 0;
+        for (int extra : new int[]{0, 500, 5000}) {
+            GamePanel panel = new GamePanel(null);
+            panel.setup(extra % 3, extra % 3, null);
+            panel.sim.setup(extra % 3, extra % 3, 42L + extra);
+            panel.sim.player.health = Integer.MAX_VALUE;
+            if (extra > 0) Benchmarks.fill(panel.sim, extra);
+            BufferedImage java2d = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+            BufferedImage raster = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+            for (int i = 0; i < 1200 && !panel.sim.over; i++) {
+                panel.sim.updateGame(GameSimulation.sweep(i));
+                if (i % 50 != 0) continue;
+                panel.frames.publish(panel.sim);
+                for (BufferedImage img : new BufferedImage[]{java2d, raster}) {
+                    panel.rasterize = img == raster;
+                    Graphics2D g = img.createGraphics();
+                    panel.paintComponent(g);
+                    g.dispose();
+                }
+                int[] a = PixelRenderer.pixels(java2d), b = PixelRenderer.pixels(raster);
+                for (int p = 0; p < a.length; p++) {
+                    if (((a[p] ^ b[p]) & 0xffffff) == 0) continue;
+                    System.out.printf("tick %d with %d extra asteroids: pixel %d,%d is %06x in Java2D, %06x in software%n",
+                            i, extra, p % 800, p / 800, a[p] & 0xffffff, b[p] & 0xffffff);
+                    return false;
+                }
+                frames++;
+            }
+        }
+        System.out.println(frames + " frames identical in both backends");
+        return true;
+    }
+}
+
+// drives a warmed-up game headlessly and reports how many bytes the tick loop allocated
+class TickAllocationCheck {
+    static long run(int warmup, int ticks) {
+        com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+
+        GameSimulation game = new GameSimulation();
+        game.setup(2, 1);
+        game.player.health = Integer.MAX_VALUE;
+        for (int i = 0; i < warmup; i++) game.updateGame(GameSimulation.sweep(i));
+
+        // the first few reads of the counter allocate on their own, so settle it before measuring
+        long overhead = 0;
+        for (int i = 0; i < 3; i++) overhead = -mx.getThreadAllocatedBytes(self) + mx.getThreadAllocatedBytes(self);
+        long before = mx.getThreadAllocatedBytes(self);
+        for (int i = 0; i < ticks; i++) game.updateGame(GameSimulation.sweep(i));
+        long bytes = mx.getThreadAllocatedBytes(self) - before - overhead;
+
+        System.out.println("updateGame allocated " + bytes + " bytes over " + ticks + " ticks");
+        return bytes;
+    }
+}
+
+
+// small JMH-style harness: warmup and timed iterations per benchmark, results exported as JMH-shaped JSON
+class Benchmarks {
+    static final int WARMUP = 3, ITERATIONS = 5;
+    static final long ITERATION_NANOS = 500_000_000L, TIMEOUT_MILLIS = 60_000;
+    // student's t at 0.9995 for ITERATIONS - 1 degrees of freedom, so scoreError is JMH's 99.9% interval
+    static final double T_999 = 8.610;
+    static volatile long sink;
+    static boolean stopped = false;  // a timed-out op is still running and would skew every later number
+    static java.util.List<String> json = new ArrayList<>();
+
+    interface Op { long run(); }
+
+    static void run(String filter, File out) {
+        System.setProperty("java.awt.headless", "true");
+        int[] sizes = {10, 100, 1000, 10000};
+        for (int n : sizes) {
+            GameSimulation sim = populated(n);
+            // the ship keeps firing, so whatever it shot down is replaced and the field stays at n rocks
+            bench(filter, "tick", n, () -> {
+                sim.updateGame(GameSimulation.FIRE);
+                fill(sim, n);
+                return sim.tick;
+            });
+        }
+        for (int n : sizes) {
+            GameSimulation sim = populated(n);
+            bench(filter, "collisionGrid", n, () -> collideGrid(sim));
+            bench(filter, "collisionBruteForce", n, () -> collideBruteForce(sim));
+        }
+        for (boolean raster : new boolean[]{false, true}) {
+            for (int n : sizes) {
+                GamePanel panel = new GamePanel(null);
+                panel.setup(1, 0, null);
+                panel.rasterize = raster;
+                fill(panel.sim, n);
+                panel.frames.publish(panel.sim);
+                BufferedImage frame = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+                bench(filter, raster ? "paintRaster" : "paintComponent", n, () -> {
+                    Graphics2D g = frame.createGraphics();
+                    panel.paintComponent(g);
+                    g.dispose();
+                    return frame.getRGB(400, 300);
+                });
+            }
+        }
+        // one frame of particle work with n alive: the tick's update, the hand-off to the renderer and the draw
+        for (int n : new int[]{10000, 100000}) {
+            Particles particles = new Particles(), frame = new Particles();
+            Random r = new Random(3);
+            while (particles.count < n) {
+                particles.burst(r.nextInt(800), r.nextInt(600), 100, 0.05f, 0xffc800, Particles.SPARK, 1 << 20);
+            }
+            int[] target = new int[800 * 600];
+            bench(filter, "particles", n, () -> {
+                particles.update(1, 4);
+                frame.copyFrom(particles);
+                frame.draw(target, 800, 600, 1, 0, 0, 600, null);
+                return frame.count;
+            });
+        }
+        // a new high score for one pilot, then what the menu shows: their rank and the top five
+        for (int n : new int[]{10000, 1000000}) {
+            ScoreRanking ranking = ranking(n);
+            Map<String, Integer> best = new HashMap<>();
+            for (String line : ranking.range(0, n)) {
+                String[] p = line.split(":");
+                best.put(p[0], Integer.parseInt(p[1]));
+            }
+            Random r = new Random(7);
+            bench(filter, "leaderboard", n, () -> {
+                String user = "pilot" + r.nextInt(n);
+                int score = best.get(user) + 1 + r.nextInt(100);
+                ranking.remove(user, best.put(user, score));
+                ranking.insert(user, score);
+                return ranking.rank(user, score) + ranking.range(0, 5).size();
+            });
+        }
+
+        try (PrintWriter w = new PrintWriter(new FileWriter(out))) {
+            w.println("[");
+            w.println(String.join(",\n", json));
+            w.println("]");
+        } catch (IOException e) {
+            System.out.println("could not write " + out + ": " + e.getMessage());
+        }
+        System.out.println("results written to " + out);
+    }
+
+    static GameSimulation populated(int n) {
+        GameSimulation sim = new GameSimulation();
+        sim.setup(2, 1);
+        sim.player.health = Integer.MAX_VALUE;
+        fill(sim, n);
+        return sim;
+    }
+
+    static void fill(GameSimulation sim, int n) {
+        while (sim.store.live[EntityStore.ASTEROID] < n) {
+            Random r = sim.rnd;
+            sim.store.addAsteroid(r.nextDouble() * 800, r.nextDouble() * 600, r.nextInt(3),
+                    (r.nextDouble() - 0.5) * 1.5, (r.nextDouble() - 0.5) * 1.5, r);
+        }
+    }
+
+    // rebuilds the grid and probes it with a column of laser-sized boxes across the field
+    static long collideGrid(GameSimulation sim) {
+        EntityStore s = sim.store;
+        SpatialGrid grid = sim.grid;
+        grid.clear();
+        for (int i = s.base[EntityStore.ASTEROID]; i < s.end(EntityStore.ASTEROID); i++) {
+            grid.insert(i, s.x[i], s.y[i], s.w[i], s.h[i]);
+        }
+        long found = 0;
+        for (int k = 0; k < 100; k++) {
+            double px = k * 8, py = (k * 37) % 600;
+            int n = grid.query(px, py, 3, 15);
+            for (int j = 0; j < n; j++) {
+                int id = grid.hits[j];
+                if (px < s.x[id] + s.w[id] && px + 3 > s.x[id] && py < s.y[id] + s.h[id] && py + 15 > s.y[id]) found++;
+            }
+        }
+        return found;
+    }
+
+    static long collideBruteForce(GameSimulation sim) {
+        EntityStore s = sim.store;
+        long found = 0;
+        for (int k = 0; k < 100; k++) {
+            double px = k * 8, py = (k * 37) % 600;
+            for (int id = s.base[EntityStore.ASTEROID]; id < s.end(EntityStore.ASTEROID); id++) {
+                if (px < s.x[id] + s.w[id] && px + 3 > s.x[id] && py < s.y[id] + s.h[id] && py + 15 > s.y[id]) found++;
+            }
+        }
+        return found;
+    }
+
+    static ScoreRanking ranking(int n) {
+        Random r = new Random(42);
+        ScoreRanking ranking = new ScoreRanking();
+        for (int i = 0; i < n; i++) ranking.insert("pilot" + i, r.nextInt(100000));
+        return ranking;
+    }
+
+    static void bench(String filter, String name, int param, Op op) {
+        if (!name.contains(filter)) return;
+        String label = name + " [" + param + "]";
+        if (stopped) {
+            System.out.printf("%-32s skipped, an earlier benchmark timed out%n", label);
+            return;
+        }
+
+        // one untimed call on a side thread first, so an op that never finishes cannot hang the suite
+        Thread probe = new Thread(() -> sink += op.run());
+        probe.setDaemon(true);
+        long start = System.nanoTime();
+        probe.start();
+        try { probe.join(TIMEOUT_MILLIS); } catch (InterruptedException ignored) {}
+        if (probe.isAlive()) {
+            System.out.printf("%-32s timed out after %d s%n", label, TIMEOUT_MILLIS / 1000);
+            json.add(String.format("  {\"benchmark\": \"%s\", \"params\": {\"size\": \"%d\"}, \"mode\": \"avgt\", " +
+                    "\"error\": \"timed out after %d s\"}", name, param, TIMEOUT_MILLIS / 1000));
+            stopped = true;
+            return;
+        }
+        boolean singleShot = System.nanoTime() - start > ITERATION_NANOS;
+
+        double[] scores = new double[ITERATIONS];
+        for (int it = singleShot ? -1 : -WARMUP; it < ITERATIONS; it++) {
+            long ops = 0;
+            long t0 = System.nanoTime(), elapsed;
+            do {
+                sink += op.run();
+                ops++;
+                elapsed = System.nanoTime() - t0;
+            } while (!singleShot && elapsed < ITERATION_NANOS);
+            if (it >= 0) scores[it] = (double) elapsed / ops;
+        }
+
+        double mean = 0;
+        for (double v : scores) mean += v;
+        mean /= ITERATIONS;
+        double var = 0;
+        for (double v : scores) var += (v - mean) * (v - mean);
+        double error = T_999 * Math.sqrt(var / (ITERATIONS - 1) / ITERATIONS);
+
+        System.out.printf("%-32s %,16.1f ns/op  +- %,.1f%n", label, mean, error);
+        StringBuilder raw = new StringBuilder();
+        for (int i = 0; i < ITERATIONS; i++) raw.append(i == 0 ? "" : ", ").append(String.format(Locale.ROOT, "%.1f", scores[i]));
+        json.add(String.format(Locale.ROOT, "  {\"benchmark\": \"%s\", \"params\": {\"size\": \"%d\"}, \"mode\": \"avgt\", " +
+                "\"warmupIterations\": %d, \"measurementIterations\": %d, \"primaryMetric\": {\"score\": %.1f, " +
+                "\"scoreError\": %.1f, \"scoreUnit\": \"ns/op\", \"rawData\": [[%s]]}}",
+                name, param, singleShot ? 1 : WARMUP, ITERATIONS, mean, error, raw));
+    }
+}